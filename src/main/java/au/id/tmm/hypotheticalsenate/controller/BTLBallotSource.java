@@ -0,0 +1,26 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+/**
+ * The ways in which a {@link BallotCollector} can read the below the line ballots from the database.
+ *
+ * @author timothy
+ */
+public enum BTLBallotSource {
+
+    /**
+     * A row of the {@code BelowTheLineBallot} table for each preference.
+     */
+    PREFERENCE_ROWS,
+
+    /**
+     * A row for each ballot, with its preferences aggregated from the {@code BelowTheLineBallot} table by the database.
+     */
+    AGGREGATED_PREFERENCES,
+
+    /**
+     * A row of the {@code PackedBelowTheLineBallot} table for each ballot, with its preferences packed into a blob.
+     * These must have been loaded with
+     * {@link au.id.tmm.hypotheticalsenate.database.HypotheticalSenateDatabase#loadPackedBelowTheLinePreferences}.
+     */
+    PACKED_BALLOTS,
+}
@@ -0,0 +1,141 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+
+import java.util.Arrays;
+
+/**
+ * Adds ballots to a {@link BallotStore}, collapsing ballots with identical candidate orders into a single weighted
+ * bundle. The intrinsic weight of a bundle is the sum of the intrinsic weights of the ballots it represents, so a
+ * bundle of {@code n} normal ballots has a weight of {@code n}.
+ * <p>
+ * Bundles are found using an open-addressing hash table of ballot indices, whose keys are the candidate orders held in
+ * the store itself.
+ *
+ * @author timothy
+ */
+public class BallotBundler {
+
+    private static final int EMPTY = -1;
+    private static final int INITIAL_TABLE_SIZE = 1024;
+
+    private final BallotStore ballots;
+
+    private int[] bundleTable;
+    private int[] bundleHashes;
+
+    private int numBallots = 0;
+    private int numBundles = 0;
+
+    public BallotBundler(BallotStore ballots) {
+        this.ballots = ballots;
+
+        this.bundleTable = new int[INITIAL_TABLE_SIZE];
+        this.bundleHashes = new int[INITIAL_TABLE_SIZE];
+        Arrays.fill(this.bundleTable, EMPTY);
+    }
+
+    /**
+     * Adds a ballot with the given weight and the candidate order held in the first {@code orderLength} elements of the
+     * given array to the store, or adds the weight to an existing bundle with the same candidate order. Returns the
+     * index of the ballot in the store.
+     */
+    public int add(double intrinsicWeight, int[] candidateOrder, int orderLength) {
+        this.numBallots++;
+
+        int hash = hash(candidateOrder, orderLength);
+        int mask = this.bundleTable.length - 1;
+
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int bundle = this.bundleTable[slot];
+
+            if (bundle == EMPTY) {
+                bundle = this.ballots.add(intrinsicWeight, candidateOrder, 0, orderLength);
+
+                this.bundleTable[slot] = bundle;
+                this.bundleHashes[slot] = hash;
+                this.numBundles++;
+
+                if (2 * this.numBundles > this.bundleTable.length) {
+                    this.growTable();
+                }
+
+                return bundle;
+            } else if (this.bundleHashes[slot] == hash && this.hasCandidateOrder(bundle, candidateOrder, orderLength)) {
+                this.ballots.setIntrinsicWeight(bundle, this.ballots.getIntrinsicWeight(bundle) + intrinsicWeight);
+
+                return bundle;
+            }
+        }
+    }
+
+    private boolean hasCandidateOrder(int ballot, int[] candidateOrder, int orderLength) {
+        if (this.ballots.getOrderLength(ballot) != orderLength) {
+            return false;
+        }
+
+        for (int i = 0; i < orderLength; i++) {
+            if (this.ballots.getPreference(ballot, i) != candidateOrder[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void growTable() {
+        int[] oldTable = this.bundleTable;
+        int[] oldHashes = this.bundleHashes;
+
+        this.bundleTable = new int[oldTable.length * 2];
+        this.bundleHashes = new int[oldTable.length * 2];
+        Arrays.fill(this.bundleTable, EMPTY);
+
+        int mask = this.bundleTable.length - 1;
+
+        for (int oldSlot = 0; oldSlot < oldTable.length; oldSlot++) {
+            if (oldTable[oldSlot] != EMPTY) {
+                int slot = oldHashes[oldSlot] & mask;
+
+                while (this.bundleTable[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+
+                this.bundleTable[slot] = oldTable[oldSlot];
+                this.bundleHashes[slot] = oldHashes[oldSlot];
+            }
+        }
+    }
+
+    private static int hash(int[] candidateOrder, int orderLength) {
+        int hash = 1;
+
+        for (int i = 0; i < orderLength; i++) {
+            hash = 31 * hash + candidateOrder[i];
+        }
+
+        // Spread the higher bits downwards, as the table index is taken from the lower bits.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns the number of ballots that have been added to this bundler.
+     */
+    public int getNumBallots() {
+        return numBallots;
+    }
+
+    /**
+     * Returns the number of distinct candidate orders, and hence bundles, among the ballots added to this bundler.
+     */
+    public int getNumBundles() {
+        return numBundles;
+    }
+
+    /**
+     * Returns the ratio of the number of ballots added to the number of bundles they were collapsed into.
+     */
+    public double computeCompressionRatio() {
+        return this.numBundles == 0 ? 1d : ((double) this.numBallots) / ((double) this.numBundles);
+    }
+}
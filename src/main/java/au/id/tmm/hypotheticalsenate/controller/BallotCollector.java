@@ -1,48 +1,151 @@
 package au.id.tmm.hypotheticalsenate.controller;
 
+import au.id.tmm.hypotheticalsenate.GUIMain;
+import au.id.tmm.hypotheticalsenate.database.BallotCache;
+import au.id.tmm.hypotheticalsenate.database.GroupVotingTicketCache;
 import au.id.tmm.hypotheticalsenate.database.HypotheticalSenateDatabase;
+import au.id.tmm.hypotheticalsenate.database.PackedPreferences;
 import au.id.tmm.hypotheticalsenate.model.AustralianState;
-import au.id.tmm.hypotheticalsenate.model.Ballot;
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
 import au.id.tmm.hypotheticalsenate.model.Candidate;
 import au.id.tmm.hypotheticalsenate.model.Election;
 import au.id.tmm.hypotheticalsenate.model.GroupVotingTicket;
+import au.id.tmm.hypotheticalsenate.model.MappedBallotArena;
 import com.google.common.collect.LinkedListMultimap;
 import com.google.common.collect.ListMultimap;
-import gnu.trove.iterator.TIntIntIterator;
-import gnu.trove.list.TIntList;
-import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TObjectIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TObjectIntHashMap;
-import org.apache.commons.lang3.mutable.MutableInt;
 
+import javax.annotation.Nullable;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
- * Engine for collecting {@link Ballot}s and {@link Candidate}s from a {@link HypotheticalSenateDatabase}.
+ * Engine for collecting ballots and {@link Candidate}s from a {@link HypotheticalSenateDatabase} into a
+ * {@link BallotStore}.
  * <p>
  * Note that subclasses are given the opportunity to mutate the loaded ballots via the
- * {@link #customiseATLBallots(List)} and {@link #customiseBTLBallots(List)} methods, which do nothing by default but
- * can be overridden. Note also that the process for translating the preferences in the database to the candidate order
- * used in a {@link Ballot} is performed in {@link #candidateOrderFromPreferences(TIntIntMap)}.
+ * {@link #customiseATLBallots(BallotStore, int, int)} and {@link #customiseBTLBallots(BallotStore, int, int)} methods,
+ * which do nothing by default but can be overridden. Note also that the process for translating the preferences in the
+ * database to the candidate order of a ballot is performed by a {@link CandidateOrderBuilder}, which is reused for
+ * every ballot.
+ * <p>
+ * Candidates are identified in the collected ballots by their index in the list returned by {@link #getCandidates()},
+ * rather than by their AEC candidate ID. The candidates must therefore be loaded before the ballots, although
+ * {@link #loadCandidatesAndBallots(HypotheticalSenateDatabase)} overlaps the three loads, each on its own connection.
+ * <p>
+ * The ballots are loaded straight into a single {@link BallotStore}, with the above the line ballots first. The
+ * {@code customiseATLBallots} hook is applied as soon as the above the line ballots are loaded, and always before any
+ * below the line ballot is added. The {@code customiseBTLBallots} hook is applied once every ballot is loaded, and
+ * the {@link #btlBallotLoaded(double, int[], int)} hook in between, as each below the line ballot paper is loaded.
+ * <p>
+ * Each ballot can also be streamed to a {@link BallotSink} as it is added to the store, which allows a count to be set
+ * up while the ballots are still being loaded.
+ * <p>
+ * By default, {@link #loadCandidatesAndBallots(HypotheticalSenateDatabase)} keeps the collected ballots in the
+ * database's {@link BallotCache}, and uses them in place of the database on later loads. Subclasses that collect
+ * ballots differently, and ballots read from different {@link BTLBallotSource}s, are cached separately according to
+ * their {@link #getBallotCacheVariant() variant}. Ballots are not cached if no below the line ballots were read, as the
+ * source they were to be read from may not yet have been loaded into the database.
+ * <p>
+ * Alternatively, ballots can be {@link #collectFrom(RawBallots) collected from} {@link RawBallots} loaded once for a
+ * state, so that several collectors can be compared without each of them reading the database.
  *
  * @author timothy
  */
 public class BallotCollector {
 
     public static final int FETCH_SIZE = 100;
+
+    // The queries made while loading ballots for a count, each of which should be served by an index leading with
+    // electionID and stateCode, so that loading other elections and states does not slow them down. The preferences of
+    // a ballot need not be ordered, as the CandidateOrderBuilder orders them. See checkQueryPlans().
+    static final String CANDIDATES_QUERY =
+            "SELECT candidateID, partyID, givenName, surname " +
+            "FROM Candidate " +
+            "WHERE electionID = ? " +
+            "  AND candidateID IN (" +
+            "  SELECT preferencedCandidate " +
+            "  FROM GroupTicketPreference " +
+            "  WHERE stateCode = ? " +
+            "    AND electionID = ?" +
+            ");";
+
+    private static final String ATL_VOTES_QUERY =
+            "SELECT groupID, votes " +
+            "FROM AboveTheLineVotes " +
+            "WHERE stateCode = ? " +
+            "  AND electionID = ?;";
+
+    private static final String GROUP_TICKET_PREFERENCES_QUERY =
+            "SELECT ownerGroup, ticket, preference, preferencedCandidate " +
+            "FROM GroupTicketPreference " +
+            "WHERE stateCode = ? " +
+            "  AND electionID = ? " +
+            "ORDER BY ownerGroup ASC, ticket ASC, preference ASC;";
+
+    private static final String BTL_PREFERENCES_QUERY =
+            "SELECT ballotID, candidateID, preference " +
+            "FROM BelowTheLineBallot " +
+            "WHERE stateCode = ? " +
+            "  AND electionID = ? " +
+            "ORDER BY ballotID ASC;";
+
+    private static final String AGGREGATED_BTL_PREFERENCES_QUERY =
+            "SELECT ballotID, " +
+            "  GROUP_CONCAT(candidateID || ':' || IFNULL(CAST(preference AS INTEGER), 0)) " +
+            "FROM BelowTheLineBallot " +
+            "WHERE stateCode = ? " +
+            "  AND electionID = ? " +
+            "GROUP BY ballotID " +
+            "ORDER BY ballotID ASC;";
+
+    private static final String PACKED_BTL_BALLOTS_QUERY =
+            "SELECT preferences " +
+            "FROM PackedBelowTheLineBallot " +
+            "WHERE stateCode = ? " +
+            "  AND electionID = ? " +
+            "ORDER BY ballotID ASC;";
+
+    static final String[] COUNT_STATE_QUERIES = {
+            ATL_VOTES_QUERY,
+            GROUP_TICKET_PREFERENCES_QUERY,
+            BTL_PREFERENCES_QUERY,
+            AGGREGATED_BTL_PREFERENCES_QUERY,
+            PACKED_BTL_BALLOTS_QUERY,
+    };
+
+    private static final String EXPLAIN_QUERY_PLAN = "EXPLAIN QUERY PLAN ";
+
     private final AustralianState state;
     private final Election election;
 
-    private List<Ballot> ballots;
-    private Collection<Candidate> candidates;
+    private BallotStore ballots;
+    @Nullable
+    private MappedBallotArena mappedBallots;
+    private List<Candidate> candidates;
+    private TIntIntMap candidateIndices;
+    private BallotSink ballotSink = (ballots, ballot) -> {};
+    private boolean useBallotCache = true;
+    private boolean useMappedBallots = false;
+    private BTLBallotSource btlBallotSource = BTLBallotSource.PREFERENCE_ROWS;
+    private int numATLBallots;
+    private int numBTLBallotPapers;
 
     public BallotCollector(Election election, AustralianState state) {
         this.state = state;
@@ -50,110 +153,331 @@ public class BallotCollector {
     }
 
     public BallotCollector loadCandidates(HypotheticalSenateDatabase database) {
-        candidates = new TreeSet<>();
+        database.runWithConnection(this::loadCandidates);
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
-            statement.setFetchSize(FETCH_SIZE);
-
-            ResultSet resultSet = statement.executeQuery(
-                    "SELECT candidateID, partyID, givenName, surname " +
-                            "FROM Candidate " +
-                            "WHERE electionID = " + this.election.getID() + " " +
-                            "  AND candidateID IN (" +
-                            "  SELECT DISTINCT candidateID " +
-                            "  FROM Candidate " +
-                            "  JOIN GroupTicketPreference " +
-                            "  ON Candidate.candidateID = GroupTicketPreference.preferencedCandidate " +
-                            "  AND GroupTicketPreference.stateCode = '" + this.state.getCode() + "'" +
-                            ");"
-            );
-
-            while(resultSet.next()) {
-                candidates.add(new Candidate(
-                        resultSet.getInt("candidateID"),
-                        resultSet.getString("givenName"),
-                        resultSet.getString("surname"),
-                        resultSet.getString("partyID")
-                ));
+        return this;
+    }
+
+    /**
+     * Sets the {@link BallotSink} to which each ballot is streamed as it is loaded.
+     */
+    public BallotCollector setBallotSink(BallotSink ballotSink) {
+        this.ballotSink = ballotSink;
+
+        return this;
+    }
+
+    /**
+     * Sets whether {@link #loadCandidatesAndBallots(HypotheticalSenateDatabase)} should read and write the database's
+     * {@link BallotCache}.
+     */
+    public BallotCollector setUseBallotCache(boolean useBallotCache) {
+        this.useBallotCache = useBallotCache;
+
+        return this;
+    }
+
+    /**
+     * Sets whether ballots read from the {@link BallotCache} should be counted directly from the cache file as a
+     * {@link MappedBallotArena}, rather than being read onto the heap. This has no effect if the cache is not used.
+     */
+    public BallotCollector setUseMappedBallots(boolean useMappedBallots) {
+        this.useMappedBallots = useMappedBallots;
+
+        return this;
+    }
+
+    /**
+     * Sets the {@link BTLBallotSource} from which the below the line ballots are read. Every source that has been
+     * loaded into the database collects the same ballots, but reading a row for each ballot, whether aggregated or
+     * packed, greatly reduces the number of rows fetched. The ballots read from each source are cached separately.
+     */
+    public BallotCollector setBTLBallotSource(BTLBallotSource btlBallotSource) {
+        this.btlBallotSource = btlBallotSource;
+
+        return this;
+    }
+
+    /**
+     * Collects the candidates and ballots from ballots that have already been loaded, rather than from the database.
+     * The customisation hooks of this collector are applied to a {@link BallotStore#copyOnWriteView() copy-on-write
+     * view} of the raw ballots, which are left untouched, and every ballot is then streamed to the
+     * {@link BallotSink}.
+     */
+    public BallotCollector collectFrom(RawBallots rawBallots) {
+        if (rawBallots.getElection() != this.election || rawBallots.getState() != this.state) {
+            throw new IllegalArgumentException("The raw ballots are for " + rawBallots.getState().render()
+                    + " rather than " + this.state.render());
+        }
+
+        this.setCandidates(rawBallots.getCandidates());
+        this.ballots = rawBallots.getBallots().copyOnWriteView();
+        this.mappedBallots = null;
+
+        this.numATLBallots = rawBallots.getNumATLBallots();
+        this.customiseATLBallots(this.ballots, 0, this.numATLBallots);
+
+        int[] candidateOrder = new int[this.candidates.size()];
+        for (int ballot = this.numATLBallots; ballot < this.ballots.size(); ballot++) {
+            int orderLength = this.ballots.getOrderLength(ballot);
+
+            if (orderLength > candidateOrder.length) {
+                candidateOrder = new int[orderLength];
             }
-        });
+
+            for (int preferenceIndex = 0; preferenceIndex < orderLength; preferenceIndex++) {
+                candidateOrder[preferenceIndex] = this.ballots.getPreference(ballot, preferenceIndex);
+            }
+
+            this.btlBallotLoaded(this.ballots.getIntrinsicWeight(ballot), candidateOrder, orderLength);
+        }
+
+        this.customiseBTLBallots(this.ballots, this.numATLBallots, this.ballots.size());
+
+        for (int ballot = 0; ballot < this.ballots.size(); ballot++) {
+            this.ballotSink.ballotAdded(this.ballots, ballot);
+        }
 
         return this;
     }
 
     public BallotCollector loadBallots(HypotheticalSenateDatabase database) {
-        int numCandidates = computeNumCandidates(database);
+        if (this.candidates == null) {
+            throw new IllegalStateException("The candidates must be loaded before the ballots");
+        }
 
-        List<Ballot> atlBallots = this.loadATLBallots(database, numCandidates);
-        atlBallots = this.customiseATLBallots(atlBallots);
+        CompletableFuture<Void> nothingToWaitFor = CompletableFuture.completedFuture(null);
+        this.ballots = new BallotStore();
+        this.mappedBallots = null;
 
-        List<Ballot> btlBallots = this.loadBTLBallots(database, numCandidates);
-        btlBallots = this.customiseBTLBallots(btlBallots);
+        database.runWithConnection((connection, resources) -> {
+            // Read everything within a single transaction, so that the ballots are loaded from a consistent snapshot.
+            connection.setAutoCommit(false);
+
+            this.loadATLBallots(connection, resources, nothingToWaitFor, database.getGroupVotingTicketCache());
+            this.finishATLBallots();
 
-        this.ballots = new ArrayList<>(atlBallots.size() + btlBallots.size());
-        this.ballots.addAll(atlBallots);
-        this.ballots.addAll(btlBallots);
+            this.loadBTLBallots(connection, resources, nothingToWaitFor);
+
+            connection.commit();
+        });
+
+        this.finishBTLBallots();
 
         return this;
     }
 
-    private List<Ballot> loadATLBallots(HypotheticalSenateDatabase database, int numCandidates) {
-        int groupCount = computeNumGroups(database);
+    /**
+     * Loads the candidates and the ballots. If the ballots for these candidates are held in the database's
+     * {@link BallotCache} they are read from there, and otherwise they are loaded from the database and then cached.
+     * If {@link #setUseMappedBallots(boolean) mapped ballots} are used, the cached ballots are mapped rather than read
+     * onto the heap.
+     * <p>
+     * The ballot loads run their queries while the candidates are loaded and the cache is checked, so that on a cache
+     * miss they overlap the candidates query. They add nothing to the store until the cache is known to be missing the
+     * ballots, and are abandoned if it holds them.
+     */
+    public BallotCollector loadCandidatesAndBallots(HypotheticalSenateDatabase database) {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
 
-        List<Ballot> ballots = new ArrayList<>(groupCount * 2);
+        try {
+            CompletableFuture<Void> candidatesLoaded =
+                    CompletableFuture.runAsync(() -> this.loadCandidates(database), executor);
 
-        TObjectIntMap<String> groupFirstPreferences = new TObjectIntHashMap<>(groupCount);
-        ListMultimap<String, GroupVotingTicket> groupTicketMap = LinkedListMultimap.create(groupCount);
+            if (!this.useBallotCache) {
+                join(this.startLoadingBallots(database, executor, candidatesLoaded));
+                this.finishBTLBallots();
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
-            statement.setFetchSize(FETCH_SIZE);
-
-            ResultSet atlVotesResultSet = statement.executeQuery(
-                    "SELECT groupID, votes " +
-                            "FROM AboveTheLineVotes " +
-                            "WHERE stateCode = '" + this.state.getCode() + "'" +
-                            "  AND electionID = " + this.election.getID() + ";"
-            );
-
-            while (atlVotesResultSet.next()) {
-                groupFirstPreferences.put(atlVotesResultSet.getString("groupID"), atlVotesResultSet.getInt("votes"));
+                return this;
             }
 
-            ResultSet groupPreferencesResultSet = statement.executeQuery(
-                    "SELECT ownerGroup, ticket, preference, preferencedCandidate " +
-                            "FROM GroupTicketPreference " +
-                            "WHERE stateCode = '" + this.state.getCode() + "' " +
-                            "  AND electionID = " + this.election.getID() + " " +
-                            "ORDER BY ownerGroup ASC, ticket ASC, preference ASC;"
-            );
-
-            if (groupPreferencesResultSet.next()) {
-                // Grab the first ticket and group, then restart the iterator.
-                String currentGroup = groupPreferencesResultSet.getString("ownerGroup");
-                int currentTicket = groupPreferencesResultSet.getInt("ticket");
-                TIntIntMap currentTicketPreferences = new TIntIntHashMap(numCandidates);
-
-                do {
-                    if (!currentGroup.equals(groupPreferencesResultSet.getString("ownerGroup"))
-                            || currentTicket != groupPreferencesResultSet.getInt("ticket")) {
-                        groupTicketMap.put(currentGroup,
-                                new GroupVotingTicket(currentGroup, currentTicket, currentTicketPreferences));
-
-                        currentGroup = groupPreferencesResultSet.getString("ownerGroup");
-                        currentTicket = groupPreferencesResultSet.getInt("ticket");
-                        currentTicketPreferences = new TIntIntHashMap(numCandidates);
+            CompletableFuture<Void> cacheMissed = new CompletableFuture<>();
+            CompletableFuture<Void> ballotsLoaded = this.startLoadingBallots(database, executor,
+                    candidatesLoaded.thenCombine(cacheMissed, (candidates, missed) -> null));
+
+            BallotCache ballotCache = database.getBallotCache();
+
+            join(candidatesLoaded);
+
+            String variant = this.getBallotCacheVariant();
+            int[] candidateIDs = this.getCandidateIDs();
+
+            Optional<? extends BallotArena> cachedBallots = this.useMappedBallots
+                    ? ballotCache.map(this.election, this.state, variant, candidateIDs)
+                    : ballotCache.read(this.election, this.state, variant, candidateIDs);
+
+            if (cachedBallots.isPresent()) {
+                // Nothing has been added by the abandoned loads, which need only release their connections.
+                cacheMissed.cancel(false);
+                ballotsLoaded.handle((result, failure) -> null).join();
+
+                this.setCachedBallots(cachedBallots.get());
+
+                GUIMain.out.println(String.format("Read %,d ballots for %s from the ballot cache",
+                        cachedBallots.get().size(), this.state.render()));
+            } else {
+                cacheMissed.complete(null);
+                join(ballotsLoaded);
+                this.finishBTLBallots();
+
+                if (this.numBTLBallotPapers == 0) {
+                    GUIMain.out.println("No below the line ballots were read for " + this.state.render()
+                            + " from " + this.btlBallotSource + ", so the ballots have not been cached");
+                } else {
+                    ballotCache.write(this.election, this.state, variant, candidateIDs, this.ballots);
+
+                    if (this.useMappedBallots) {
+                        // Count from the file that was just written, so that the loaded ballots can be dropped from
+                        // the heap.
+                        ballotCache.map(this.election, this.state, variant, candidateIDs).ifPresent(mappedBallots -> {
+                            this.mappedBallots = mappedBallots;
+                            this.ballots = null;
+                        });
                     }
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
 
-                    currentTicketPreferences.put(
-                            groupPreferencesResultSet.getInt("preferencedCandidate"),
-                            groupPreferencesResultSet.getInt("preference"));
-                } while(groupPreferencesResultSet.next());
+        return this;
+    }
+
+    private void setCachedBallots(BallotArena cachedBallots) {
+        if (cachedBallots instanceof MappedBallotArena) {
+            this.mappedBallots = (MappedBallotArena) cachedBallots;
+            this.ballots = null;
+        } else {
+            this.ballots = (BallotStore) cachedBallots;
+        }
+
+        for (int ballot = 0; ballot < cachedBallots.size(); ballot++) {
+            this.ballotSink.ballotAdded(cachedBallots, ballot);
+        }
+    }
+
+    /**
+     * Starts loading the above the line ballots and the below the line ballots concurrently into a new store, each
+     * using its own connection. The loads run their queries straight away. The above the line ballots wait for the
+     * given future, which must complete once the candidates are loaded, and the below the line ballots wait for the
+     * above the line ballots, only once they have results to add to the store. The returned future completes once
+     * every ballot is loaded, before the {@code customiseBTLBallots} hook is applied.
+     */
+    private CompletableFuture<Void> startLoadingBallots(HypotheticalSenateDatabase database,
+                                                        ExecutorService executor,
+                                                        CompletableFuture<?> candidatesLoaded) {
+        this.ballots = new BallotStore();
+        this.mappedBallots = null;
+
+        CompletableFuture<Void> atlBallotsLoaded = CompletableFuture.runAsync(() -> {
+            this.loadBallotsWithConnection(database, (connection, resources, readyToAdd) ->
+                    this.loadATLBallots(connection, resources, readyToAdd, database.getGroupVotingTicketCache()),
+                    candidatesLoaded);
+            this.finishATLBallots();
+        }, executor);
+
+        return CompletableFuture.runAsync(
+                () -> this.loadBallotsWithConnection(database, this::loadBTLBallots, atlBallotsLoaded), executor);
+    }
+
+    /**
+     * Waits for the given future, rethrowing the {@link RuntimeException} with which it failed.
+     */
+    private static void join(CompletableFuture<?> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw e;
             }
-        });
+        }
+    }
+
+    private void loadBallotsWithConnection(HypotheticalSenateDatabase database,
+                                           BallotLoader ballotLoader,
+                                           CompletableFuture<?> readyToAdd) {
+        database.runWithConnection((connection, resources) ->
+                ballotLoader.loadBallots(connection, resources, readyToAdd));
+    }
+
+    private void finishATLBallots() {
+        this.numATLBallots = this.ballots.size();
+        this.customiseATLBallots(this.ballots, 0, this.numATLBallots);
+    }
+
+    private void finishBTLBallots() {
+        this.customiseBTLBallots(this.ballots, this.numATLBallots, this.ballots.size());
+        this.ballots.trimToSize();
+    }
+
+    /**
+     * Adds a ballot to the store, and streams it to the {@link BallotSink}.
+     */
+    private void addBallot(double intrinsicWeight, int[] candidateOrder, int orderLength) {
+        int ballot = this.ballots.add(intrinsicWeight, candidateOrder, 0, orderLength);
+
+        this.ballotSink.ballotAdded(this.ballots, ballot);
+    }
+
+    private void loadCandidates(Connection connection, Collection<AutoCloseable> resources) throws SQLException {
+        Collection<Candidate> candidates = new TreeSet<>();
+
+        PreparedStatement statement = this.prepareCandidatesQuery(connection, resources, CANDIDATES_QUERY);
+
+        ResultSet resultSet = statement.executeQuery();
+
+        while(resultSet.next()) {
+            candidates.add(new Candidate(
+                    resultSet.getInt("candidateID"),
+                    resultSet.getString("givenName"),
+                    resultSet.getString("surname"),
+                    resultSet.getString("partyID")
+            ));
+        }
+
+        this.setCandidates(candidates);
+    }
+
+    private void setCandidates(Collection<Candidate> candidates) {
+        this.candidates = new ArrayList<>(candidates);
+        this.candidateIndices = new TIntIntHashMap(this.candidates.size());
+
+        for (int candidateIndex = 0; candidateIndex < this.candidates.size(); candidateIndex++) {
+            this.candidateIndices.put(this.candidates.get(candidateIndex).getCandidateID(), candidateIndex);
+        }
+    }
+
+    /**
+     * Loads the above the line ballots, with a ballot for each group voting ticket. Nothing is counted up front to
+     * size the store, which instead grows as ballots are added to it. The candidate orders of the tickets are taken
+     * from the given {@link GroupVotingTicketCache}, and are only built from the database if they are not cached.
+     */
+    private void loadATLBallots(Connection connection,
+                                Collection<AutoCloseable> resources,
+                                CompletableFuture<?> candidatesLoaded,
+                                GroupVotingTicketCache ticketCache) throws SQLException {
+        TObjectIntMap<String> groupFirstPreferences = new TObjectIntHashMap<>();
+
+        PreparedStatement atlVotesStatement = this.prepareStateQuery(connection, resources, ATL_VOTES_QUERY);
+
+        ResultSet atlVotesResultSet = atlVotesStatement.executeQuery();
+
+        while (atlVotesResultSet.next()) {
+            groupFirstPreferences.put(atlVotesResultSet.getString("groupID"), atlVotesResultSet.getInt("votes"));
+        }
+
+        candidatesLoaded.join();
+        int[] candidateIDs = this.getCandidateIDs();
+
+        Optional<ListMultimap<String, GroupVotingTicket>> cachedTickets =
+                ticketCache.get(this.election, this.state, candidateIDs);
+
+        ListMultimap<String, GroupVotingTicket> groupTicketMap = cachedTickets.isPresent()
+                ? cachedTickets.get()
+                : ticketCache.put(this.election, this.state, candidateIDs,
+                        this.loadGroupVotingTickets(connection, resources));
 
         groupTicketMap.asMap().forEach((group, tickets) -> {
             if (!tickets.isEmpty()) {
@@ -161,166 +485,392 @@ public class BallotCollector {
                                 / ((double) tickets.size());
 
                 for (GroupVotingTicket ticket : tickets) {
-                    this.candidateOrderFromPreferences(ticket.getPreferences()).ifPresent(candidateOrder ->
-                            ballots.add(new Ballot(intrinsicBallotWeight, candidateOrder)));
+                    if (ticket.isValid()) {
+                        int[] candidateOrder = ticket.getCandidateOrder();
+                        this.addBallot(intrinsicBallotWeight, candidateOrder, candidateOrder.length);
+                    }
                 }
             }
         });
+    }
+
+    /**
+     * Loads the group voting tickets of each group, building the candidate order of each ticket.
+     */
+    private ListMultimap<String, GroupVotingTicket> loadGroupVotingTickets(Connection connection,
+                                                                          Collection<AutoCloseable> resources)
+            throws SQLException {
+        ListMultimap<String, GroupVotingTicket> groupTicketMap = LinkedListMultimap.create();
+
+        PreparedStatement groupPreferencesStatement = this.prepareStateQuery(connection, resources,
+                GROUP_TICKET_PREFERENCES_QUERY);
+
+        ResultSet groupPreferencesResultSet = groupPreferencesStatement.executeQuery();
+
+        CandidateOrderBuilder candidateOrderBuilder = new CandidateOrderBuilder(this.candidates.size());
+
+        if (groupPreferencesResultSet.next()) {
+            // Grab the first ticket and group, then restart the iterator.
+            String currentGroup = groupPreferencesResultSet.getString("ownerGroup");
+            int currentTicket = groupPreferencesResultSet.getInt("ticket");
 
-        return ballots;
+            do {
+                if (!currentGroup.equals(groupPreferencesResultSet.getString("ownerGroup"))
+                        || currentTicket != groupPreferencesResultSet.getInt("ticket")) {
+                    int orderLength = candidateOrderBuilder.build();
+                    int[] candidateOrder = orderLength >= 0
+                            ? Arrays.copyOf(candidateOrderBuilder.getCandidateOrder(), orderLength)
+                            : null;
+
+                    groupTicketMap.put(currentGroup,
+                            new GroupVotingTicket(currentGroup, currentTicket, candidateOrder));
+
+                    currentGroup = groupPreferencesResultSet.getString("ownerGroup");
+                    currentTicket = groupPreferencesResultSet.getInt("ticket");
+                    candidateOrderBuilder.reset();
+                }
+
+                candidateOrderBuilder.put(
+                        this.candidateIndexOf(groupPreferencesResultSet.getInt("preferencedCandidate")),
+                        groupPreferencesResultSet.getInt("preference"));
+            } while(groupPreferencesResultSet.next());
+        }
+
+        return groupTicketMap;
     }
 
-    protected List<Ballot> customiseATLBallots(List<Ballot> atlBallots) {
-        return atlBallots;
+    /**
+     * Allows subclasses to mutate the above the line ballots, which occupy the given range of the given
+     * {@link BallotStore}. A ballot can be effectively removed by setting its intrinsic weight to zero.
+     */
+    protected void customiseATLBallots(BallotStore ballots, int fromBallot, int toBallot) {
     }
 
-    private List<Ballot> loadBTLBallots(HypotheticalSenateDatabase database, int numCandidates) {
+    /**
+     * Loads the below the line ballots, after any above the line ballots. Ballots with identical candidate orders are
+     * collapsed into a single bundle by a {@link BallotBundler}, so that the work done during the count scales with the
+     * number of distinct candidate orders rather than the number of ballot papers. Only the first ballot of each
+     * bundle is streamed to the {@link BallotSink}.
+     */
+    private void loadBTLBallots(Connection connection,
+                                Collection<AutoCloseable> resources,
+                                CompletableFuture<?> atlBallotsLoaded) throws SQLException {
+        BallotBundler bundler = new BallotBundler(this.ballots);
+
+        switch (this.btlBallotSource) {
+            case PREFERENCE_ROWS:
+                this.loadBTLBallotsByPreference(connection, resources, atlBallotsLoaded, bundler);
+                break;
+            case AGGREGATED_PREFERENCES:
+                this.loadAggregatedBTLBallots(connection, resources, atlBallotsLoaded, bundler);
+                break;
+            case PACKED_BALLOTS:
+                this.loadPackedBTLBallots(connection, resources, atlBallotsLoaded, bundler);
+                break;
+            default:
+                throw new IllegalStateException("Unknown below the line ballot source " + this.btlBallotSource);
+        }
 
-        int numBallots = computeNumBallots(database);
+        this.numBTLBallotPapers = bundler.getNumBallots();
 
-        List<Ballot> ballots = new ArrayList<>(numBallots);
+        GUIMain.out.println(String.format("Bundled %,d below the line ballots for %s into %,d distinct preference " +
+                        "orders (%.2f:1)",
+                bundler.getNumBallots(), this.state.render(), bundler.getNumBundles(),
+                bundler.computeCompressionRatio()));
+    }
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
-            statement.setFetchSize(FETCH_SIZE);
-
-            ResultSet resultSet = statement.executeQuery(
-                    "SELECT ballotID, candidateID, preference " +
-                            "FROM BelowTheLineBallot " +
-                            "WHERE stateCode = '" + this.state.getCode() + "' " +
-                            "  AND electionID = " + this.election.getID() + " " +
-                            "ORDER BY ballotID ASC, preference ASC;");
-
-            if (resultSet.next()) {
-                // Grab the first ballot ID, then restart the iterator.
-                String currentBallotID = resultSet.getString("ballotID");
-                TIntIntMap currentBallotPreferences = new TIntIntHashMap(numCandidates);
-
-                do {
-
-                    if (!currentBallotID.equals(resultSet.getString("ballotID"))) {
-                        candidateOrderFromPreferences(currentBallotPreferences).ifPresent(candidateOrder ->
-                                ballots.add(new Ballot(1d, candidateOrder)));
-
-                        currentBallotID = resultSet.getString("ballotID");
-                        currentBallotPreferences = new TIntIntHashMap(numCandidates);
-                    }
+    /**
+     * Loads the below the line ballots with a row for each preference.
+     */
+    private void loadBTLBallotsByPreference(Connection connection,
+                                            Collection<AutoCloseable> resources,
+                                            CompletableFuture<?> atlBallotsLoaded,
+                                            BallotBundler bundler) throws SQLException {
+        PreparedStatement statement = this.prepareStateQuery(connection, resources, BTL_PREFERENCES_QUERY);
 
-                    currentBallotPreferences.put(resultSet.getInt("candidateID"), resultSet.getInt("preference"));
-                } while (resultSet.next());
-            }
-        });
+        ResultSet resultSet = statement.executeQuery();
+        boolean hasBallots = resultSet.next();
+
+        atlBallotsLoaded.join();
+        CandidateOrderBuilder candidateOrderBuilder = new CandidateOrderBuilder(this.candidates.size());
+
+        if (hasBallots) {
+            // Grab the first ballot ID, then restart the iterator.
+            long currentBallotID = resultSet.getLong("ballotID");
+            candidateOrderBuilder.reset();
+
+            do {
+                long ballotID = resultSet.getLong("ballotID");
+
+                if (ballotID != currentBallotID) {
+                    this.addBTLBallot(bundler, candidateOrderBuilder);
 
-        return ballots;
+                    currentBallotID = ballotID;
+                    candidateOrderBuilder.reset();
+                }
+
+                candidateOrderBuilder.put(
+                        this.candidateIndexOf(resultSet.getInt("candidateID")),
+                        resultSet.getInt("preference"));
+            } while (resultSet.next());
+
+            this.addBTLBallot(bundler, candidateOrderBuilder);
+        }
     }
 
-    protected List<Ballot> customiseBTLBallots(List<Ballot> btlBallots) {
-        return btlBallots;
+    /**
+     * Loads the below the line ballots with a row for each ballot, whose preferences are aggregated by the database
+     * into a single column of comma separated {@code candidateID:preference} pairs. The pairs are decoded straight
+     * into the {@link CandidateOrderBuilder}, which orders them by preference, so the order in which they are
+     * aggregated does not matter.
+     */
+    private void loadAggregatedBTLBallots(Connection connection,
+                                          Collection<AutoCloseable> resources,
+                                          CompletableFuture<?> atlBallotsLoaded,
+                                          BallotBundler bundler) throws SQLException {
+        PreparedStatement statement = this.prepareStateQuery(connection, resources,
+                AGGREGATED_BTL_PREFERENCES_QUERY);
+
+        ResultSet resultSet = statement.executeQuery();
+        boolean hasBallots = resultSet.next();
+
+        atlBallotsLoaded.join();
+        CandidateOrderBuilder candidateOrderBuilder = new CandidateOrderBuilder(this.candidates.size());
+
+        if (hasBallots) {
+            do {
+                candidateOrderBuilder.reset();
+                this.decodePreferences(resultSet.getString(2), candidateOrderBuilder);
+
+                this.addBTLBallot(bundler, candidateOrderBuilder);
+            } while (resultSet.next());
+        }
     }
 
-    private int computeNumBallots(HypotheticalSenateDatabase database) {
-        MutableInt numBallots = new MutableInt();
+    /**
+     * Loads the below the line ballots from the {@code PackedBelowTheLineBallot} table, which has a row for each
+     * ballot holding its {@link PackedPreferences packed} preferences. These are unpacked straight into the
+     * {@link CandidateOrderBuilder}.
+     */
+    private void loadPackedBTLBallots(Connection connection,
+                                      Collection<AutoCloseable> resources,
+                                      CompletableFuture<?> atlBallotsLoaded,
+                                      BallotBundler bundler) throws SQLException {
+        PreparedStatement statement = this.prepareStateQuery(connection, resources, PACKED_BTL_BALLOTS_QUERY);
+
+        ResultSet resultSet = statement.executeQuery();
+        boolean hasBallots = resultSet.next();
+
+        atlBallotsLoaded.join();
+        CandidateOrderBuilder candidateOrderBuilder = new CandidateOrderBuilder(this.candidates.size());
+        PackedPreferences.PreferenceConsumer consumer = (candidateID, preference) ->
+                candidateOrderBuilder.put(this.candidateIndexOf(candidateID), preference);
+
+        if (hasBallots) {
+            do {
+                candidateOrderBuilder.reset();
+                PackedPreferences.unpack(resultSet.getBytes(1), consumer);
+
+                this.addBTLBallot(bundler, candidateOrderBuilder);
+            } while (resultSet.next());
+        }
+    }
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
-
-            numBallots.setValue(
-                    statement.executeQuery(
-                            "SELECT COUNT(DISTINCT ballotID) AS numBallots " +
-                                    "FROM BelowTheLineBallot " +
-                                    "WHERE stateCode = '" + this.state.getCode() + "' " +
-                                    "  AND electionID = " + this.election.getID() + ";")
-                            .getLong("numBallots"));
-        });
+    /**
+     * Decodes comma separated {@code candidateID:preference} pairs into the given {@link CandidateOrderBuilder}.
+     */
+    private void decodePreferences(String preferences, CandidateOrderBuilder candidateOrderBuilder) {
+        int position = 0;
+        int length = preferences.length();
+
+        while (position < length) {
+            int candidateID = 0;
+            char character;
+
+            while ((character = preferences.charAt(position++)) != ':') {
+                candidateID = 10 * candidateID + (character - '0');
+            }
+
+            boolean negative = position < length && preferences.charAt(position) == '-';
+            if (negative) {
+                position++;
+            }
+
+            int preference = 0;
 
-        return numBallots.intValue();
+            while (position < length && (character = preferences.charAt(position++)) != ',') {
+                preference = 10 * preference + (character - '0');
+            }
+
+            candidateOrderBuilder.put(this.candidateIndexOf(candidateID), negative ? -preference : preference);
+        }
     }
 
-    private int computeNumCandidates(HypotheticalSenateDatabase database) {
-        MutableInt numCandidates = new MutableInt();
+    private void addBTLBallot(BallotBundler bundler, CandidateOrderBuilder candidateOrderBuilder) {
+        int orderLength = candidateOrderBuilder.build();
+        if (orderLength >= 0) {
+            this.btlBallotLoaded(1d, candidateOrderBuilder.getCandidateOrder(), orderLength);
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
-
-            numCandidates.setValue(
-                    statement.executeQuery(
-                            "SELECT COUNT(DISTINCT candidateID) AS numCandidates " +
-                                    "FROM BelowTheLineBallot " +
-                                    "WHERE stateCode = '" + this.state.getCode() + "' " +
-                                    "  AND electionID = " + this.election.getID() + ";")
-                            .getLong("numCandidates"));
-        });
+            int numBundles = bundler.getNumBundles();
+            int ballot = bundler.add(1d, candidateOrderBuilder.getCandidateOrder(), orderLength);
 
-        return numCandidates.intValue();
+            if (bundler.getNumBundles() != numBundles) {
+                this.ballotSink.ballotAdded(this.ballots, ballot);
+            }
+        }
     }
 
-    private int computeNumGroups(HypotheticalSenateDatabase database) {
-        MutableInt groupCount = new MutableInt();
+    /**
+     * Allows subclasses to observe each below the line ballot paper as it is loaded, before it is bundled, so that
+     * anything needed by {@link #customiseBTLBallots(BallotStore, int, int)} can be gathered without another pass over
+     * the ballots. Only the given number of elements of the candidate order are meaningful, and the array is reused
+     * once this method returns. When ballots are {@link #collectFrom(RawBallots) collected from raw ballots} this is
+     * called once for each bundle, with the number of papers in the bundle as its weight.
+     */
+    protected void btlBallotLoaded(double intrinsicWeight, int[] candidateOrder, int orderLength) {
+    }
 
-        database.runWithConnection((connection, resources) -> {
-            Statement statement = connection.createStatement();
-            resources.add(statement);
+    /**
+     * Allows subclasses to mutate the below the line ballots, which occupy the given range of the given
+     * {@link BallotStore}. A ballot can be effectively removed by setting its intrinsic weight to zero.
+     */
+    protected void customiseBTLBallots(BallotStore ballots, int fromBallot, int toBallot) {
+    }
 
-            statement.setFetchSize(FETCH_SIZE);
+    private PreparedStatement prepareQuery(Connection connection, Collection<AutoCloseable> resources, String sql)
+            throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        resources.add(statement);
+        statement.setFetchSize(FETCH_SIZE);
 
-            ResultSet groupCountResult = statement.executeQuery(
-                    "SELECT COUNT(DISTINCT groupID) as groupCount " +
-                            "FROM GroupTicketInfo " +
-                            "WHERE stateCode = '" + this.state.getCode() + "' " +
-                            "  AND electionID = " + this.election.getID() + ";"
-            );
+        return statement;
+    }
 
-            groupCountResult.next();
-            groupCount.setValue(groupCountResult.getInt("groupCount"));
-        });
+    /**
+     * Prepares the query for the candidates, and binds its parameters to the state and election of this collector.
+     */
+    private PreparedStatement prepareCandidatesQuery(Connection connection,
+                                                     Collection<AutoCloseable> resources,
+                                                     String sql) throws SQLException {
+        PreparedStatement statement = this.prepareQuery(connection, resources, sql);
+
+        statement.setInt(1, this.election.getID());
+        statement.setString(2, this.state.getCode());
+        statement.setInt(3, this.election.getID());
 
-        return groupCount.intValue();
+        return statement;
     }
 
     /**
-     * Converts the surjective relationship between candidates and preferences for a single ballot into a candidate
-     * order. An empty {@link Optional} is returned if the vote is considered to be invalid and hence ignored.
-     * <p>
-     * Currently a ballot with any duplicated preferences is considered invalid. More work should be done to make this
-     * more closely represent the AEC's processes for determining vote formality.
+     * Prepares a query whose first two parameters are the state code and the election ID, and binds them to the state
+     * and election of this collector.
      */
-    protected Optional<TIntList> candidateOrderFromPreferences(TIntIntMap candidateToPreferenceMap) {
-        TIntIntMap preferenceToCandidateMap = new TIntIntHashMap(candidateToPreferenceMap.size());
+    private PreparedStatement prepareStateQuery(Connection connection, Collection<AutoCloseable> resources, String sql)
+            throws SQLException {
+        PreparedStatement statement = this.prepareQuery(connection, resources, sql);
 
-        int maxPreference = 0;
+        statement.setString(1, this.state.getCode());
+        statement.setInt(2, this.election.getID());
 
-        for (TIntIntIterator it = candidateToPreferenceMap.iterator(); it.hasNext() ;) {
-            it.advance();
-            if (preferenceToCandidateMap.containsKey(it.value())) {
-                return Optional.empty();
-            } else {
-                preferenceToCandidateMap.put(it.value(), it.key());
+        return statement;
+    }
 
-                if (it.value() > maxPreference) {
-                    maxPreference = it.value();
-                }
+    /**
+     * Checks with {@code EXPLAIN QUERY PLAN} that each query made while loading ballots for a count is served by an
+     * index on the election and state, rather than scanning a table, searching an index that does not lead with the
+     * election, or sorting its results in a temporary B-tree. Each step of a plan that does any of these is described
+     * in the returned list, which is empty if every query is served by an index.
+     */
+    public List<String> checkQueryPlans(HypotheticalSenateDatabase database) {
+        List<String> problems = new ArrayList<>();
+
+        database.runWithConnection((connection, resources) -> {
+            checkQueryPlan(this.prepareCandidatesQuery(connection, resources, EXPLAIN_QUERY_PLAN + CANDIDATES_QUERY),
+                    CANDIDATES_QUERY, problems);
+
+            for (String query : COUNT_STATE_QUERIES) {
+                checkQueryPlan(this.prepareStateQuery(connection, resources, EXPLAIN_QUERY_PLAN + query),
+                        query, problems);
             }
-        }
+        });
+
+        return problems;
+    }
+
+    private static void checkQueryPlan(PreparedStatement explainStatement, String query, List<String> problems)
+            throws SQLException {
+        ResultSet resultSet = explainStatement.executeQuery();
 
-        TIntList candidateOrder = new TIntArrayList(preferenceToCandidateMap.size());
+        while (resultSet.next()) {
+            String detail = resultSet.getString("detail");
 
-        for (int preference = 0; preference <= maxPreference; preference++) {
-            if (preferenceToCandidateMap.containsKey(preference)) {
-                candidateOrder.add(preferenceToCandidateMap.get(preference));
+            boolean searchesElection = detail.startsWith("SEARCH") && detail.contains("electionID=?");
+
+            if (detail.startsWith("SCAN") || detail.contains("TEMP B-TREE")
+                    || (detail.startsWith("SEARCH") && !searchesElection)) {
+                problems.add(detail + " in query: " + query);
             }
         }
+    }
+
+    private int candidateIndexOf(int candidateID) {
+        if (!this.candidateIndices.containsKey(candidateID)) {
+            throw new IllegalStateException("Candidate " + candidateID + " was preferenced in "
+                    + this.state.render() + " but is not standing there");
+        }
+
+        return this.candidateIndices.get(candidateID);
+    }
+
+    /**
+     * Loads one kind of ballot into the store, waiting on the given future before adding any ballots.
+     */
+    @FunctionalInterface
+    private interface BallotLoader {
+        public void loadBallots(Connection connection,
+                                Collection<AutoCloseable> resources,
+                                CompletableFuture<?> readyToAdd) throws SQLException;
+    }
+
+    /**
+     * Returns the name under which the ballots collected by this collector are kept in the {@link BallotCache}, which
+     * is given by its class and its {@link BTLBallotSource}. Subclasses whose collected ballots depend on more than
+     * these should override this.
+     */
+    protected String getBallotCacheVariant() {
+        return this.getClass().getName() + "-" + this.btlBallotSource.name();
+    }
+
+    private int[] getCandidateIDs() {
+        return this.candidates.stream()
+                .mapToInt(Candidate::getCandidateID)
+                .toArray();
+    }
+
+    /**
+     * Returns the collected ballots, which are held off the heap if {@link #setUseMappedBallots(boolean) mapped
+     * ballots} are used.
+     */
+    BallotStore getBallotStore() {
+        if (this.ballots == null) {
+            throw new IllegalStateException("The ballots are not held on the heap");
+        }
 
-        return Optional.of(candidateOrder);
+        return this.ballots;
     }
 
-    public List<Ballot> getBallots() {
-        return ballots;
+    int getNumATLBallots() {
+        return this.numATLBallots;
     }
 
-    public Collection<Candidate> getCandidates() {
+    public BallotArena getBallots() {
+        return this.mappedBallots != null ? this.mappedBallots : this.ballots;
+    }
+
+    /**
+     * Returns the candidates, in the order of the indices used to identify them in the collected ballots.
+     */
+    public List<Candidate> getCandidates() {
         return candidates;
     }
 }
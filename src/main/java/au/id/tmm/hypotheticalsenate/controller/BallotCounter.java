@@ -1,71 +1,184 @@
 package au.id.tmm.hypotheticalsenate.controller;
 
-import au.id.tmm.hypotheticalsenate.model.Ballot;
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
 import au.id.tmm.hypotheticalsenate.model.Candidate;
+import au.id.tmm.hypotheticalsenate.model.PreferenceTrie;
 import au.id.tmm.hypotheticalsenate.model.Result;
 import au.id.tmm.hypotheticalsenate.model.VoteTally;
-import gnu.trove.map.TIntObjectMap;
-import gnu.trove.map.hash.TIntObjectHashMap;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.OptionalInt;
+import java.util.concurrent.ForkJoinPool;
 
 /**
- * An engine for performing a count, given a number of vacancies, a set of candidates and a list of ballots.
+ * An engine for performing a count, given a number of vacancies, a list of candidates and a {@link BallotArena}.
+ * <p>
+ * Throughout the count, candidates are identified by their index in the list of candidates, which is also how they
+ * are identified in the candidate orders of the ballots. The ballots, tallies and continuing status of each candidate
+ * are held in arrays indexed by candidate, and {@link Candidate} objects are only resolved when recording each
+ * {@link CountStep}. The tallies of the continuing candidates are held in a single {@link VoteTally}, which is updated
+ * in place after each transfer.
+ * <p>
+ * By default, the ballots held by each continuing candidate are tracked as lists of indices into the
+ * {@code BallotArena}, which is mutated as ballots are transferred. Alternatively, the ballots can be
+ * {@link #setUsePreferenceTrie(boolean) represented} as a {@link PreferenceTrie}, in which case ballots sharing a
+ * preference prefix are transferred together, and the {@code BallotArena} is left untouched.
+ * <p>
+ * When {@link #setBulkExclusion(boolean) bulk exclusion} is enabled, a count step that would exclude the lowest
+ * candidate instead excludes the largest group of lowest candidates whose combined votes are fewer than those of the
+ * next candidate, as none of them could ever overtake that candidate.
+ * <p>
+ * The count finishes as soon as the number of continuing candidates is no more than the number of unfilled vacancies,
+ * at which point every continuing candidate is elected in a single final step, in order of their votes.
  * <p>
  * Once run, a {@code BallotCounter} cannot be run again.
+ * <p>
+ * The number of votes held by each continuing candidate is maintained incrementally as ballots are transferred, so
+ * that each count step costs time proportional to the parcel of ballots being distributed rather than to the whole
+ * electorate. When {@link #setVerifyTallies(boolean) tally verification} is enabled, these running totals are checked
+ * against a full recount of every candidate's ballots at each step. Verification is enabled by default when assertions
+ * are enabled.
  *
  * @author timothy
  */
 public class BallotCounter {
 
+    private static final double TALLY_TOLERANCE = 1e-9d;
+
     private boolean hasRun = false;
+    private boolean verifyTallies = BallotCounter.class.desiredAssertionStatus();
+    private boolean usePreferenceTrie = false;
+    private boolean bulkExclusion = false;
+    private int parallelism = 1;
 
     private final int vacancies;
     private final int quota;
 
-    private final TIntObjectMap<Candidate> idToCandidateMap;
-    private final Map<Candidate, List<Ballot>> candidateBallots = new HashMap<>();
+    private final BallotArena ballots;
+    private final List<Candidate> candidates;
+    private final int numCandidates;
+    private final VoteTally candidateTallies;
+    private final double[] transferredVotes;
+    private final BitSet continuingCandidates;
+
+    @Nullable
+    private final FirstPreferencePiles firstPreferencePiles;
+    private BallotPiles candidateBallots;
 
     private final List<CountStep> steps = new LinkedList<>();
     private final List<Candidate> electedCandidates = new LinkedList<>();
 
     private int currentCountStepNumber = 0;
 
-    public BallotCounter(int vacancies, Collection<Candidate> candidates, List<Ballot> ballots) {
+    public BallotCounter(int vacancies, List<Candidate> candidates, BallotArena ballots) {
+        this(vacancies, candidates, ballots, null);
+    }
+
+    /**
+     * Creates a counter whose initial allocation of ballots is given by the {@link FirstPreferencePiles} to which the
+     * ballots were streamed as they were collected, rather than found by scanning the arena.
+     */
+    public BallotCounter(int vacancies,
+                         List<Candidate> candidates,
+                         BallotArena ballots,
+                         @Nullable FirstPreferencePiles firstPreferencePiles) {
         this.vacancies = vacancies;
+        this.ballots = ballots;
+        this.firstPreferencePiles = firstPreferencePiles;
+        this.candidates = new ArrayList<>(candidates);
+        this.numCandidates = candidates.size();
+        this.candidateTallies = new VoteTally(this.numCandidates);
+        this.transferredVotes = new double[this.numCandidates];
+        this.continuingCandidates = new BitSet(this.numCandidates);
+
+        double totalVotes = 0d;
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            totalVotes += ballots.computeCurrentWeight(ballot);
+        }
 
         // Compute the quota. The ignoring of the remainder is intended
-        this.quota = ((int) Math.ceil(tallyBallots(ballots)) / (vacancies + 1)) + 1;
+        this.quota = ((int) Math.ceil(totalVotes) / (vacancies + 1)) + 1;
+    }
 
+    /**
+     * Sets whether the incrementally maintained candidate tallies should be checked against a full recount at each
+     * count step. This is expensive, and is intended only for debugging.
+     */
+    public void setVerifyTallies(boolean verifyTallies) {
+        this.verifyTallies = verifyTallies;
+    }
 
-        this.idToCandidateMap = new TIntObjectHashMap<>(candidates.size());
-        candidates.forEach(candidate -> this.idToCandidateMap.put(candidate.getCandidateID(), candidate));
+    /**
+     * Sets whether the ballots should be counted using a {@link PreferenceTrie}, rather than by transferring each
+     * ballot individually.
+     */
+    public void setUsePreferenceTrie(boolean usePreferenceTrie) {
+        this.usePreferenceTrie = usePreferenceTrie;
+    }
 
-        // Initialise candidate lists.
-        candidates.forEach(candidate ->
-                this.candidateBallots.put(candidate, new ArrayList<>(2 * quota)));
+    /**
+     * Sets whether groups of candidates who can never overtake the next candidate should be excluded together in a
+     * single count step.
+     */
+    public void setBulkExclusion(boolean bulkExclusion) {
+        this.bulkExclusion = bulkExclusion;
+    }
+
+    /**
+     * Sets the number of threads used to transfer large piles of ballots. A parallelism of {@code 1}, the default,
+     * transfers every pile on the calling thread. The result of the count does not depend on the parallelism. This
+     * has no effect when using a {@link PreferenceTrie}, whose transfers are always performed serially.
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, but was " + parallelism);
+        }
 
-        ballots.forEach(ballot ->
-                ballot.computeCurrentCandidate().ifPresent(firstPreferencedCandidate ->
-                        this.candidateBallots.get(this.idToCandidateMap.get(firstPreferencedCandidate)).add(ballot)));
+        this.parallelism = parallelism;
     }
 
     public Result run() {
         this.hasRunCheck();
 
+        ForkJoinPool transferPool = this.parallelism > 1 && !this.usePreferenceTrie
+                ? new ForkJoinPool(this.parallelism)
+                : null;
+
+        try {
+            return this.runWith(transferPool);
+        } finally {
+            if (transferPool != null) {
+                transferPool.shutdown();
+            }
+        }
+    }
+
+    private Result runWith(@Nullable ForkJoinPool transferPool) {
+        this.candidateBallots = this.usePreferenceTrie
+                ? new TrieBallotPiles(PreferenceTrie.fromBallots(this.ballots), this.numCandidates)
+                : new StoreBallotPiles(this.ballots,
+                        this.firstPreferencePiles != null
+                                ? this.firstPreferencePiles
+                                : FirstPreferencePiles.fromBallots(this.ballots),
+                        this.numCandidates,
+                        transferPool);
+
+        this.continuingCandidates.set(0, this.numCandidates);
+
+        for (int candidate = 0; candidate < this.numCandidates; candidate++) {
+            this.candidateTallies.put(candidate, this.candidateBallots.tally(candidate));
+        }
+
         this.steps.add(this.initialAllocationStep());
 
         do {
             this.currentCountStepNumber ++;
             this.steps.add(this.normalCountStep());
-        } while (this.electedCandidates.size() < this.vacancies);
+        } while (this.electedCandidates.size() < this.vacancies && !this.continuingCandidates.isEmpty());
 
         return this.bundleResult();
     }
@@ -81,7 +194,7 @@ public class BallotCounter {
     private CountStep initialAllocationStep() {
         CountStep initialCountStep = new CountStep(this.currentCountStepNumber);
 
-        initialCountStep.setVotes(this.currentCount().getVotes());
+        initialCountStep.setVotes(this.currentCount().toCandidateMap(this.candidates));
 
         return initialCountStep;
     }
@@ -90,30 +203,51 @@ public class BallotCounter {
         CountStep countStep = new CountStep(this.currentCountStepNumber);
         VoteTally currentCount = this.currentCount();
 
-        if (currentCount.get(currentCount.getHighestVoteCandidate()) > quota) {
-            // A candidate has exceeded quota
-            countStep.setCandidateElected(currentCount.getHighestVoteCandidate());
+        int remainingVacancies = this.vacancies - this.electedCandidates.size();
 
-            this.distributeAfterElectionAndRemove(currentCount.getHighestVoteCandidate());
-        } else if (this.candidateBallots.size() == 1) {
-            // There is only one candidate left
-            Candidate lastCandidate = this.candidateBallots.keySet().stream().findFirst().get();
-            countStep.setCandidateElected(lastCandidate);
+        if (this.continuingCandidates.cardinality() <= remainingVacancies) {
+            // There are only as many candidates left as there are vacancies, so they are all elected
+            int[] remainingCandidates = this.computeRemainingCandidatesByVotes();
 
-            assert this.electedCandidates.size() == this.vacancies;
+            List<Candidate> candidatesElected = new ArrayList<>(remainingCandidates.length);
+            for (int candidate : remainingCandidates) {
+                candidatesElected.add(this.candidates.get(candidate));
 
-        } else {
-            // We must exclude a candidate
-            countStep.setCandidateExcluded(currentCount.getLowestVoteCandidate());
+                this.remove(candidate);
+                this.candidateBallots.discard(candidate);
+            }
+            countStep.setCandidatesElected(candidatesElected);
+
+        } else if (currentCount.get(currentCount.getHighestVoteCandidate()) > quota) {
+            // A candidate has exceeded quota
+            countStep.setCandidateElected(this.candidates.get(currentCount.getHighestVoteCandidate()));
 
-            this.distributeAfterExclusionAndRemove(currentCount.getLowestVoteCandidate());
+            this.distributeAfterElectionAndRemove(currentCount.getHighestVoteCandidate());
+        } else {
+            int[] bulkExclusionCandidates = this.bulkExclusion ? this.computeBulkExclusion() : new int[0];
+
+            if (bulkExclusionCandidates.length > 1) {
+                // We can exclude several candidates at once
+                List<Candidate> excludedCandidates = new ArrayList<>(bulkExclusionCandidates.length);
+                for (int candidate : bulkExclusionCandidates) {
+                    excludedCandidates.add(this.candidates.get(candidate));
+                }
+                countStep.setCandidatesExcluded(excludedCandidates);
+
+                this.distributeAfterBulkExclusionAndRemove(bulkExclusionCandidates);
+            } else {
+                // We must exclude a candidate
+                countStep.setCandidateExcluded(this.candidates.get(currentCount.getLowestVoteCandidate()));
+
+                this.distributeAfterExclusionAndRemove(currentCount.getLowestVoteCandidate());
+            }
         }
 
-        countStep.getCandidateElected().ifPresent(this.electedCandidates::add);
+        this.electedCandidates.addAll(countStep.getCandidatesElected());
 
         // The votes for this count step are computed once we've finish allocating votes from elected or excluded
         // candidates.
-        countStep.setVotes(this.currentCount().getVotes());
+        countStep.setVotes(this.currentCount().toCandidateMap(this.candidates));
 
         return countStep;
     }
@@ -123,45 +257,107 @@ public class BallotCounter {
      * candidates. This is a different process from distributing votes from an excluded candidate as we must compute the
      * transfer value of the surplus votes.
      */
-    private void distributeAfterElectionAndRemove(Candidate candidate) {
-        List<Ballot> candidateBallots = this.candidateBallots.get(candidate);
-        double totalVotes = tallyBallots(candidateBallots);
+    private void distributeAfterElectionAndRemove(int candidate) {
+        double totalVotes = this.remove(candidate);
         double surplus = totalVotes - quota;
 
         if (surplus > 0) {
             double transferFactor = surplus / totalVotes;
 
-            candidateBallots.forEach(ballot -> distributeBallot(ballot, transferFactor));
+            this.transfer(candidate, transferFactor);
+        } else {
+            this.candidateBallots.discard(candidate);
         }
+    }
+
+    private void distributeAfterExclusionAndRemove(int candidate) {
+        this.remove(candidate);
 
-        this.candidateBallots.remove(candidate);
+        this.transfer(candidate, 1.0f);
     }
 
-    private void distributeAfterExclusionAndRemove(Candidate candidate) {
-        this.candidateBallots.get(candidate).forEach(ballot -> distributeBallot(ballot, 1.0f));
+    /**
+     * Returns every continuing candidate, ordered from the most votes to the fewest.
+     */
+    private int[] computeRemainingCandidatesByVotes() {
+        int[] orderedCandidates = this.candidateTallies.candidatesBelow(Double.POSITIVE_INFINITY);
+        int[] remainingCandidates = new int[orderedCandidates.length];
 
-        this.candidateBallots.remove(candidate);
+        for (int i = 0; i < orderedCandidates.length; i++) {
+            remainingCandidates[i] = orderedCandidates[orderedCandidates.length - 1 - i];
+        }
+
+        return remainingCandidates;
     }
 
-    private void distributeBallot(Ballot ballot, double transferFactor) {
-        ballot.incrementCurrentPreferenceIndex();
-        OptionalInt newCandidateID = ballot.computeCurrentCandidate();
-        Optional<Candidate> newCandidate = newCandidateID.isPresent()
-                ? Optional.of(this.idToCandidateMap.get(newCandidateID.getAsInt()))
-                : Optional.empty();
+    /**
+     * Excludes several candidates at once. Every candidate is removed before any ballots are transferred, so that no
+     * ballot is transferred to a candidate who is being excluded in the same step.
+     */
+    private void distributeAfterBulkExclusionAndRemove(int[] candidates) {
+        for (int candidate : candidates) {
+            this.remove(candidate);
+        }
 
-        if (!newCandidate.isPresent()) {
-            // The ballot has expired
-            return;
-        } else if (!this.candidateBallots.containsKey(newCandidate.get())) {
-            // The next preference has already been either excluded or elected, so we try to distribute again.
-            this.distributeBallot(ballot, transferFactor);
-        } else {
-            ballot.multiplyCurrentWeightBy(transferFactor);
-            this.candidateBallots.get(newCandidate.get()).add(ballot);
+        for (int candidate : candidates) {
+            this.transfer(candidate, 1.0f);
+        }
+    }
+
+    /**
+     * Computes the largest group of lowest candidates whose combined votes are fewer than the votes of the next
+     * candidate, ordered from the fewest votes to the most. Enough candidates are always left to fill the remaining
+     * vacancies.
+     */
+    private int[] computeBulkExclusion() {
+        // Every continuing candidate, in order of their votes
+        int[] orderedCandidates = this.candidateTallies.candidatesBelow(Double.POSITIVE_INFINITY);
+        int remainingVacancies = this.vacancies - this.electedCandidates.size();
+
+        int numToExclude = 0;
+        double combinedVotes = 0d;
+
+        for (int numBelow = 1; numBelow < orderedCandidates.length; numBelow++) {
+            if (orderedCandidates.length - numBelow < remainingVacancies) {
+                break;
+            }
+
+            combinedVotes += this.candidateTallies.get(orderedCandidates[numBelow - 1]);
+
+            if (combinedVotes < this.candidateTallies.get(orderedCandidates[numBelow])) {
+                numToExclude = numBelow;
+            }
+        }
+
+        return Arrays.copyOf(orderedCandidates, numToExclude);
+    }
+
+    /**
+     * Transfers the ballots of a candidate who has already been removed from the continuing candidates, and then
+     * updates the tallies of the candidates who received them.
+     */
+    private void transfer(int candidate, double transferFactor) {
+        this.candidateBallots.transfer(candidate, transferFactor, this.continuingCandidates, this.transferredVotes);
+
+        for (int receivingCandidate = this.continuingCandidates.nextSetBit(0);
+             receivingCandidate >= 0;
+             receivingCandidate = this.continuingCandidates.nextSetBit(receivingCandidate + 1)) {
+            if (this.transferredVotes[receivingCandidate] != 0d) {
+                this.candidateTallies.adjust(receivingCandidate, this.transferredVotes[receivingCandidate]);
+                this.transferredVotes[receivingCandidate] = 0d;
+            }
         }
     }
 
+    /**
+     * Removes the given candidate from the continuing candidates, returning the votes they held.
+     */
+    private double remove(int candidate) {
+        this.continuingCandidates.clear(candidate);
+
+        return this.candidateTallies.remove(candidate);
+    }
+
     private Result bundleResult() {
         Result result = new Result();
 
@@ -172,21 +368,28 @@ public class BallotCounter {
     }
 
     private VoteTally currentCount() {
-        VoteTally returnedCount = new VoteTally();
-
-        this.candidateBallots.forEach((candidateID, ballots) -> returnedCount.put(
-                candidateID,
-                tallyBallots(ballots)
-        ));
+        if (this.verifyTallies) {
+            this.verifyTallies();
+        }
 
-        return returnedCount;
+        return this.candidateTallies;
     }
 
-    private static double tallyBallots(Collection<Ballot> ballots) {
-        return ballots
-                .stream()
-                .mapToDouble(Ballot::computeCurrentWeight)
-                .reduce((total, currentWeight) -> total + currentWeight)
-                .orElse(0d);
+    /**
+     * Checks the incrementally maintained tally of each continuing candidate against a full recount of their ballots.
+     */
+    private void verifyTallies() {
+        for (int candidate = this.continuingCandidates.nextSetBit(0);
+             candidate >= 0;
+             candidate = this.continuingCandidates.nextSetBit(candidate + 1)) {
+            double recountedVotes = this.candidateBallots.tally(candidate);
+            double runningVotes = this.candidateTallies.get(candidate);
+
+            if (Math.abs(recountedVotes - runningVotes) > TALLY_TOLERANCE * Math.max(1d, Math.abs(recountedVotes))) {
+                throw new IllegalStateException("Running tally of " + runningVotes + " votes for "
+                        + this.candidates.get(candidate) + " does not match the recounted tally of "
+                        + recountedVotes + " votes");
+            }
+        }
     }
 }
@@ -0,0 +1,31 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import java.util.BitSet;
+
+/**
+ * The piles of ballots held by each continuing candidate during a count, as used by a {@link BallotCounter}.
+ * Candidates are identified by their index, as used in the candidate orders of the ballots.
+ * <p>
+ * Implementations differ in how they represent the ballots in each pile, and hence in how a pile is transferred.
+ *
+ * @author timothy
+ */
+interface BallotPiles {
+
+    /**
+     * Computes the total weight of the ballots in the pile of the given candidate from scratch.
+     */
+    public double tally(int candidate);
+
+    /**
+     * Transfers every ballot in the pile of the given candidate to the next continuing candidate it preferences,
+     * multiplying its weight by the given transfer factor. The pile of the given candidate is discarded. The weight
+     * arriving at each candidate is added to their entry in the given array of tallies.
+     */
+    public void transfer(int candidate, double transferFactor, BitSet continuingCandidates, double[] tallies);
+
+    /**
+     * Discards the pile of the given candidate without transferring its ballots.
+     */
+    public void discard(int candidate);
+}
@@ -0,0 +1,23 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
+
+/**
+ * Receives each ballot as it is added to a {@link BallotArena} by a {@link BallotCollector}, allowing the ballots to
+ * be processed as they are loaded rather than once every ballot has been collected.
+ * <p>
+ * A ballot's intrinsic weight may still be changed after it has been received, both by the bundling of identical
+ * below the line ballots and by the customisation hooks of the {@code BallotCollector}, so implementations should
+ * only rely on the ballot's index and candidate order. Ballots are received one at a time, though not necessarily all
+ * on the same thread.
+ *
+ * @author timothy
+ */
+@FunctionalInterface
+public interface BallotSink {
+
+    /**
+     * Called once the given ballot has been added to the given arena.
+     */
+    public void ballotAdded(BallotArena ballots, int ballot);
+}
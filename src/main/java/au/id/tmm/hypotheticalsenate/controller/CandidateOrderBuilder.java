@@ -0,0 +1,109 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import java.util.Arrays;
+
+/**
+ * Converts the surjective relationship between candidates and preferences for a single ballot into a candidate order.
+ * <p>
+ * A builder is intended to be reused for every ballot that is loaded. Preferences are recorded in a scratch array
+ * indexed by preference number, and the candidate order is written into a buffer owned by the builder. Both are sized
+ * by the number of candidates when the builder is created, so no further memory is allocated. The candidate order
+ * returned by {@link #getCandidateOrder()} is therefore only valid until the builder is next {@link #reset()}.
+ * <p>
+ * Currently a ballot with any duplicated preferences, or with a preference greater than the number of candidates, is
+ * considered invalid. Negative preferences are ignored entirely, so a ballot on which several candidates share a
+ * negative preference is still valid. Both of these rules differ from those of the
+ * {@code candidateOrderFromPreferences} method this class replaced, which accepted preferences greater than the number
+ * of candidates, and rejected a ballot with a duplicated negative preference even though negative preferences were left
+ * out of its candidate order. More work should be done to make this more closely represent the AEC's processes for
+ * determining vote formality.
+ *
+ * @author timothy
+ */
+public class CandidateOrderBuilder {
+
+    private static final int NO_CANDIDATE = -1;
+
+    private final int[] candidatesByPreference;
+    private final int[] candidateOrder;
+
+    private int maxPreference = -1;
+    private int numPreferences = 0;
+    private boolean invalidPreference = false;
+
+    public CandidateOrderBuilder(int numCandidates) {
+        this.candidatesByPreference = new int[numCandidates + 1];
+        this.candidateOrder = new int[numCandidates + 1];
+
+        Arrays.fill(this.candidatesByPreference, NO_CANDIDATE);
+    }
+
+    /**
+     * Clears the preferences recorded so far, ready for the next ballot.
+     */
+    public void reset() {
+        if (this.maxPreference >= 0) {
+            Arrays.fill(this.candidatesByPreference, 0, this.maxPreference + 1, NO_CANDIDATE);
+        }
+
+        this.maxPreference = -1;
+        this.numPreferences = 0;
+        this.invalidPreference = false;
+    }
+
+    /**
+     * Records that the given candidate was given the given preference. Each candidate should be given at most one
+     * preference on a ballot. Negative preferences are ignored, while a preference greater than the number of
+     * candidates makes the ballot invalid.
+     */
+    public void put(int candidate, int preference) {
+        if (preference < 0) {
+            return;
+        }
+
+        if (preference >= this.candidatesByPreference.length) {
+            this.invalidPreference = true;
+            return;
+        }
+
+        if (this.candidatesByPreference[preference] != NO_CANDIDATE) {
+            this.invalidPreference = true;
+        } else {
+            this.candidatesByPreference[preference] = candidate;
+            this.numPreferences++;
+        }
+
+        if (preference > this.maxPreference) {
+            this.maxPreference = preference;
+        }
+    }
+
+    /**
+     * Writes the candidate order of the current ballot into the buffer returned by {@link #getCandidateOrder()},
+     * returning its length. If the ballot is considered to be invalid, and hence should be ignored, {@code -1} is
+     * returned instead.
+     */
+    public int build() {
+        if (this.invalidPreference) {
+            return -1;
+        }
+
+        int length = 0;
+
+        for (int preference = 0; preference <= this.maxPreference; preference++) {
+            if (this.candidatesByPreference[preference] != NO_CANDIDATE) {
+                this.candidateOrder[length++] = this.candidatesByPreference[preference];
+            }
+        }
+
+        return length;
+    }
+
+    /**
+     * Returns the buffer holding the candidate order most recently written by {@link #build()}. Only the number of
+     * elements returned by that method are meaningful.
+     */
+    public int[] getCandidateOrder() {
+        return this.candidateOrder;
+    }
+}
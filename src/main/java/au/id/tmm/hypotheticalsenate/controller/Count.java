@@ -13,11 +13,38 @@ import java.util.function.BiFunction;
  */
 public class Count {
 
+    /**
+     * The system property giving the number of threads used to transfer ballots during a count. This defaults to
+     * {@code 1}, counting on a single thread.
+     */
+    public static final String PARALLELISM_PROPERTY = "hypotheticalsenate.count.parallelism";
+
+    /**
+     * The system property naming the {@link BTLBallotSource} from which the below the line ballots are read. This
+     * defaults to {@link BTLBallotSource#PREFERENCE_ROWS}. See {@link BallotCollector#setBTLBallotSource}.
+     */
+    public static final String BTL_BALLOT_SOURCE_PROPERTY = "hypotheticalsenate.count.btlBallotSource";
+
+    /**
+     * The system property giving whether the ballots are counted using a
+     * {@link au.id.tmm.hypotheticalsenate.model.PreferenceTrie}. This defaults to {@code false}. See
+     * {@link BallotCounter#setUsePreferenceTrie(boolean)}.
+     */
+    public static final String PREFERENCE_TRIE_PROPERTY = "hypotheticalsenate.count.preferenceTrie";
+
+    /**
+     * The system property giving whether groups of candidates who can never overtake the next candidate are excluded
+     * together. This defaults to {@code false}. See {@link BallotCounter#setBulkExclusion(boolean)}.
+     */
+    public static final String BULK_EXCLUSION_PROPERTY = "hypotheticalsenate.count.bulkExclusion";
+
     private final AustralianState state;
     private final Election election;
     private final HypotheticalSenateDatabase database;
     private final BiFunction<Election, AustralianState, BallotCollector> ballotCollectorConstructor;
 
+    private boolean useMappedBallots = false;
+
     public Count(HypotheticalSenateDatabase database, Election election, AustralianState state, BiFunction<Election, AustralianState, BallotCollector> ballotCollectorConstructor) {
         this.state = state;
         this.election = election;
@@ -30,17 +57,65 @@ public class Count {
         this(database, election, state, BallotCollector::new);
     }
 
+    /**
+     * Sets whether the ballots should be counted directly from the ballot cache, off the heap. See
+     * {@link BallotCollector#setUseMappedBallots(boolean)}.
+     */
+    public Count setUseMappedBallots(boolean useMappedBallots) {
+        this.useMappedBallots = useMappedBallots;
+
+        return this;
+    }
+
+    /**
+     * Returns the {@link BTLBallotSource} named by the {@link #BTL_BALLOT_SOURCE_PROPERTY}.
+     */
+    public static BTLBallotSource getConfiguredBTLBallotSource() {
+        return BTLBallotSource.valueOf(
+                System.getProperty(BTL_BALLOT_SOURCE_PROPERTY, BTLBallotSource.PREFERENCE_ROWS.name()));
+    }
+
     public void perform() {
         GUIMain.out.println("Performing count for " + state.render());
 
+        // The initial allocation of ballots is built up as the ballots are loaded
+        FirstPreferencePiles firstPreferencePiles = new FirstPreferencePiles();
+
         BallotCollector ballotCollector = this.ballotCollectorConstructor.apply(this.election, this.state)
-                .loadBallots(this.database)
-                .loadCandidates(this.database);
+                .setBallotSink(firstPreferencePiles)
+                .setUseMappedBallots(this.useMappedBallots)
+                .setBTLBallotSource(getConfiguredBTLBallotSource())
+                .loadCandidatesAndBallots(this.database);
 
+        this.count(ballotCollector, firstPreferencePiles);
+    }
+
+    /**
+     * Performs the count over the given raw ballots, which have already been loaded from the database, rather than
+     * loading the ballots again.
+     */
+    public void performOn(RawBallots rawBallots) {
+        GUIMain.out.println("Performing count for " + state.render());
+
+        FirstPreferencePiles firstPreferencePiles = new FirstPreferencePiles();
+
+        BallotCollector ballotCollector = this.ballotCollectorConstructor.apply(this.election, this.state)
+                .setBallotSink(firstPreferencePiles)
+                .collectFrom(rawBallots);
+
+        this.count(ballotCollector, firstPreferencePiles);
+    }
+
+    private void count(BallotCollector ballotCollector, FirstPreferencePiles firstPreferencePiles) {
         BallotCounter ballotCounter = new BallotCounter(
                 state.getNormalVacancies(),
                 ballotCollector.getCandidates(),
-                ballotCollector.getBallots());
+                ballotCollector.getBallots(),
+                firstPreferencePiles);
+
+        ballotCounter.setParallelism(Integer.getInteger(PARALLELISM_PROPERTY, 1));
+        ballotCounter.setUsePreferenceTrie(Boolean.getBoolean(PREFERENCE_TRIE_PROPERTY));
+        ballotCounter.setBulkExclusion(Boolean.getBoolean(BULK_EXCLUSION_PROPERTY));
 
         Result result = ballotCounter.run();
 
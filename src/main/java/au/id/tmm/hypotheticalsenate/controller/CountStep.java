@@ -7,8 +7,8 @@ import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nullable;
 import java.text.DecimalFormat;
+import java.util.Collections;
 import java.util.List;
-import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
@@ -19,8 +19,8 @@ public class CountStep {
 
     private final int countStepNumber;
 
-    private Optional<Candidate> candidateElected = Optional.empty();
-    private Optional<Candidate> candidateExcluded = Optional.empty();
+    private List<Candidate> candidatesElected = Collections.emptyList();
+    private List<Candidate> candidatesExcluded = Collections.emptyList();
 
     private TObjectDoubleMap<Candidate> votes;
 
@@ -36,31 +36,61 @@ public class CountStep {
         this.votes = votes;
     }
 
-    public Optional<Candidate> getCandidateElected() {
-        return candidateElected;
+    /**
+     * Returns the candidates elected at this step, in the order they were elected. This is usually either empty or a
+     * single candidate, except where the remaining vacancies were all filled at once.
+     */
+    public List<Candidate> getCandidatesElected() {
+        return candidatesElected;
     }
 
     public void setCandidateElected(@Nullable Candidate candidateElected) {
-        this.candidateElected = Optional.ofNullable(candidateElected);
+        this.candidatesElected = candidateElected == null
+                ? Collections.emptyList()
+                : Collections.singletonList(candidateElected);
     }
 
-    public Optional<Candidate> getCandidateExcluded() {
-        return candidateExcluded;
+    public void setCandidatesElected(List<Candidate> candidatesElected) {
+        this.candidatesElected = Collections.unmodifiableList(candidatesElected);
+    }
+
+    /**
+     * Returns the candidates excluded at this step, in the order they were excluded. This is usually either empty or a
+     * single candidate, except where several candidates were excluded at once.
+     */
+    public List<Candidate> getCandidatesExcluded() {
+        return candidatesExcluded;
     }
 
     public void setCandidateExcluded(@Nullable Candidate candidateExcluded) {
-        this.candidateExcluded = Optional.ofNullable(candidateExcluded);
+        this.candidatesExcluded = candidateExcluded == null
+                ? Collections.emptyList()
+                : Collections.singletonList(candidateExcluded);
+    }
+
+    public void setCandidatesExcluded(List<Candidate> candidatesExcluded) {
+        this.candidatesExcluded = Collections.unmodifiableList(candidatesExcluded);
     }
 
     @Override
     public String toString() {
         return "Count " + this.countStepNumber + "\n"
-                + this.candidateExcluded.map(candidate -> "\tCandidate Excluded = " + candidate + "").orElse("")
-                + this.candidateElected.map(candidate -> "\tCandidate Elected = " + candidate + "").orElse("")
+                + candidatesToString("Excluded", this.candidatesExcluded)
+                + candidatesToString("Elected", this.candidatesElected)
                 + "\n"
                 + this.votesToString();
     }
 
+    private static String candidatesToString(String outcome, List<Candidate> candidates) {
+        if (candidates.isEmpty()) {
+            return "";
+        } else if (candidates.size() == 1) {
+            return "\tCandidate " + outcome + " = " + candidates.get(0);
+        } else {
+            return "\tCandidates " + outcome + " = " + StringUtils.join(candidates, ", ");
+        }
+    }
+
     public String votesToString() {
         List<String> entriesAsStrings = new TObjectDoubleMapDecorator<>(this.votes).entrySet()
                 .stream()
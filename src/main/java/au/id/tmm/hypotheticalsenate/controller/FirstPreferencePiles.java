@@ -0,0 +1,84 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.Arrays;
+
+/**
+ * A {@link BallotSink} which sorts the ballots into piles by the candidate they currently preference, ready to be used
+ * as the initial allocation of a {@link BallotCounter}. The piles hold the indices of the ballots in the store.
+ * <p>
+ * As the weight of a ballot may change after it has been received, ballots whose weight ends up as zero are only
+ * removed from the piles once {@link #toPiles(BallotArena, int)} is called.
+ *
+ * @author timothy
+ */
+public class FirstPreferencePiles implements BallotSink {
+
+    private TIntList[] candidateBallots = new TIntList[0];
+
+    /**
+     * Sorts every ballot already in the given store into piles.
+     */
+    public static FirstPreferencePiles fromBallots(BallotArena ballots) {
+        FirstPreferencePiles firstPreferencePiles = new FirstPreferencePiles();
+
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            firstPreferencePiles.ballotAdded(ballots, ballot);
+        }
+
+        return firstPreferencePiles;
+    }
+
+    @Override
+    public void ballotAdded(BallotArena ballots, int ballot) {
+        int candidate = ballots.computeCurrentCandidate(ballot);
+
+        if (candidate == BallotArena.EXHAUSTED) {
+            return;
+        }
+
+        if (candidate >= this.candidateBallots.length) {
+            int oldLength = this.candidateBallots.length;
+
+            this.candidateBallots = Arrays.copyOf(this.candidateBallots, Math.max(candidate + 1, 2 * oldLength));
+
+            for (int newCandidate = oldLength; newCandidate < this.candidateBallots.length; newCandidate++) {
+                this.candidateBallots[newCandidate] = new TIntArrayList();
+            }
+        }
+
+        this.candidateBallots[candidate].add(ballot);
+    }
+
+    /**
+     * Returns the pile of each of the given number of candidates, having removed any ballots that no longer have any
+     * weight in the given store.
+     */
+    TIntList[] toPiles(BallotArena ballots, int numCandidates) {
+        TIntList[] piles = new TIntList[numCandidates];
+
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            TIntList pile = candidate < this.candidateBallots.length
+                    ? this.candidateBallots[candidate]
+                    : new TIntArrayList(0);
+
+            // Ballots with no weight, such as those removed by a BallotCollector, can never affect the count.
+            int numKept = 0;
+            for (int i = 0; i < pile.size(); i++) {
+                int ballot = pile.get(i);
+
+                if (ballots.computeCurrentWeight(ballot) != 0d) {
+                    pile.set(numKept++, ballot);
+                }
+            }
+            pile.remove(numKept, pile.size() - numKept);
+
+            piles[candidate] = pile;
+        }
+
+        return piles;
+    }
+}
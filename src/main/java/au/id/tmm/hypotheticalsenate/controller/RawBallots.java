@@ -0,0 +1,78 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.database.HypotheticalSenateDatabase;
+import au.id.tmm.hypotheticalsenate.model.AustralianState;
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+import au.id.tmm.hypotheticalsenate.model.Election;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The candidates and ballots of a state at an election, loaded once without any customisation so that several
+ * {@link BallotCollector} variants can be applied to them with
+ * {@link BallotCollector#collectFrom(RawBallots)}. Each variant customises its own
+ * {@link BallotStore#copyOnWriteView() copy-on-write view} of the ballots, which are otherwise left untouched.
+ *
+ * @author timothy
+ */
+public class RawBallots {
+
+    private final Election election;
+    private final AustralianState state;
+    private final List<Candidate> candidates;
+    private final BallotStore ballots;
+    private final int numATLBallots;
+
+    private RawBallots(Election election,
+                       AustralianState state,
+                       List<Candidate> candidates,
+                       BallotStore ballots,
+                       int numATLBallots) {
+        this.election = election;
+        this.state = state;
+        this.candidates = Collections.unmodifiableList(candidates);
+        this.ballots = ballots;
+        this.numATLBallots = numATLBallots;
+    }
+
+    /**
+     * Loads the candidates and the uncustomised ballots of the given state at the given election from the database.
+     */
+    public static RawBallots load(HypotheticalSenateDatabase database,
+                                  Election election,
+                                  AustralianState state,
+                                  BTLBallotSource btlBallotSource) {
+        BallotCollector collector = new BallotCollector(election, state)
+                .setUseBallotCache(false)
+                .setBTLBallotSource(btlBallotSource)
+                .loadCandidatesAndBallots(database);
+
+        return new RawBallots(election, state, collector.getCandidates(), collector.getBallotStore(),
+                collector.getNumATLBallots());
+    }
+
+    public Election getElection() {
+        return election;
+    }
+
+    public AustralianState getState() {
+        return state;
+    }
+
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Returns the ballots, with the above the line ballots first. These must not be modified.
+     */
+    BallotStore getBallots() {
+        return ballots;
+    }
+
+    int getNumATLBallots() {
+        return numATLBallots;
+    }
+}
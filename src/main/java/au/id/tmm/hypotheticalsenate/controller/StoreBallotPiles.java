@@ -0,0 +1,173 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * {@link BallotPiles} in which each pile is a list of indices of individual ballots in a {@link BallotArena}. The
+ * store is mutated as ballots are transferred.
+ * <p>
+ * If given a {@link ForkJoinPool}, large piles are transferred in two phases. First, the pile is split into chunks
+ * which are processed in parallel, advancing each ballot to its next continuing candidate and applying the transfer
+ * factor. As each ballot sits in exactly one pile, no two tasks touch the same ballot. The destination of each ballot
+ * is recorded in a buffer parallel to the pile, which is then merged serially, in pile order, into the destination
+ * piles and tallies. As the tallies are summed in the same order as a serial transfer, the result is identical
+ * regardless of the parallelism.
+ *
+ * @author timothy
+ */
+class StoreBallotPiles implements BallotPiles {
+
+    /**
+     * The number of ballots in a pile below which it is transferred serially, and the size of each chunk when a pile
+     * is transferred in parallel.
+     */
+    static final int PARALLEL_CHUNK_SIZE = 16384;
+
+    private final BallotArena ballots;
+    private final TIntList[] candidateBallots;
+
+    @Nullable
+    private final ForkJoinPool transferPool;
+    private int[] destinations = new int[0];
+
+    StoreBallotPiles(BallotArena ballots,
+                     FirstPreferencePiles firstPreferencePiles,
+                     int numCandidates,
+                     @Nullable ForkJoinPool transferPool) {
+        this.ballots = ballots;
+        this.transferPool = transferPool;
+        this.candidateBallots = firstPreferencePiles.toPiles(ballots, numCandidates);
+    }
+
+    @Override
+    public double tally(int candidate) {
+        TIntList candidateBallots = this.candidateBallots[candidate];
+        double total = 0d;
+
+        for (int i = 0; i < candidateBallots.size(); i++) {
+            total += this.ballots.computeCurrentWeight(candidateBallots.get(i));
+        }
+
+        return total;
+    }
+
+    @Override
+    public void transfer(int candidate, double transferFactor, BitSet continuingCandidates, double[] tallies) {
+        TIntList candidateBallots = this.candidateBallots[candidate];
+
+        if (this.transferPool == null || candidateBallots.size() < PARALLEL_CHUNK_SIZE) {
+            for (int i = 0; i < candidateBallots.size(); i++) {
+                this.distributeBallot(candidateBallots.get(i), transferFactor, continuingCandidates, tallies);
+            }
+        } else {
+            this.transferInParallel(candidateBallots, transferFactor, continuingCandidates, tallies);
+        }
+
+        this.discard(candidate);
+    }
+
+    private void transferInParallel(TIntList candidateBallots,
+                                    double transferFactor,
+                                    BitSet continuingCandidates,
+                                    double[] tallies) {
+        int pileSize = candidateBallots.size();
+
+        if (this.destinations.length < pileSize) {
+            this.destinations = new int[pileSize];
+        }
+
+        this.transferPool.invoke(new AdvanceBallotsTask(this.ballots, candidateBallots, this.destinations, 0, pileSize,
+                transferFactor, continuingCandidates));
+
+        for (int i = 0; i < pileSize; i++) {
+            int newCandidate = this.destinations[i];
+
+            if (newCandidate != BallotArena.EXHAUSTED) {
+                int ballot = candidateBallots.get(i);
+
+                this.candidateBallots[newCandidate].add(ballot);
+                tallies[newCandidate] += this.ballots.computeCurrentWeight(ballot);
+            }
+        }
+    }
+
+    private void distributeBallot(int ballot, double transferFactor, BitSet continuingCandidates, double[] tallies) {
+        // Skip over any preferences for candidates that have already been either excluded or elected.
+        int newCandidate = this.ballots.advanceToContinuingCandidate(ballot, continuingCandidates);
+
+        if (newCandidate != BallotArena.EXHAUSTED) {
+            this.ballots.multiplyCurrentWeightBy(ballot, transferFactor);
+            this.candidateBallots[newCandidate].add(ballot);
+            tallies[newCandidate] += this.ballots.computeCurrentWeight(ballot);
+        }
+    }
+
+    @Override
+    public void discard(int candidate) {
+        this.candidateBallots[candidate] = new TIntArrayList(0);
+    }
+
+    /**
+     * Advances each ballot in a range of a pile to its next continuing candidate, applying the transfer factor and
+     * recording the new candidate in the destination buffer. Ranges larger than a chunk are split in two.
+     */
+    private static final class AdvanceBallotsTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final BallotArena ballots;
+        private final TIntList candidateBallots;
+        private final int[] destinations;
+        private final int from;
+        private final int to;
+        private final double transferFactor;
+        private final BitSet continuingCandidates;
+
+        private AdvanceBallotsTask(BallotArena ballots,
+                                   TIntList candidateBallots,
+                                   int[] destinations,
+                                   int from,
+                                   int to,
+                                   double transferFactor,
+                                   BitSet continuingCandidates) {
+            this.ballots = ballots;
+            this.candidateBallots = candidateBallots;
+            this.destinations = destinations;
+            this.from = from;
+            this.to = to;
+            this.transferFactor = transferFactor;
+            this.continuingCandidates = continuingCandidates;
+        }
+
+        @Override
+        protected void compute() {
+            if (this.to - this.from > PARALLEL_CHUNK_SIZE) {
+                int middle = (this.from + this.to) >>> 1;
+
+                invokeAll(
+                        new AdvanceBallotsTask(this.ballots, this.candidateBallots, this.destinations, this.from,
+                                middle, this.transferFactor, this.continuingCandidates),
+                        new AdvanceBallotsTask(this.ballots, this.candidateBallots, this.destinations, middle,
+                                this.to, this.transferFactor, this.continuingCandidates));
+            } else {
+                for (int i = this.from; i < this.to; i++) {
+                    int ballot = this.candidateBallots.get(i);
+                    int newCandidate = this.ballots.advanceToContinuingCandidate(ballot, this.continuingCandidates);
+
+                    if (newCandidate != BallotArena.EXHAUSTED) {
+                        this.ballots.multiplyCurrentWeightBy(ballot, this.transferFactor);
+                    }
+
+                    this.destinations[i] = newCandidate;
+                }
+            }
+        }
+    }
+}
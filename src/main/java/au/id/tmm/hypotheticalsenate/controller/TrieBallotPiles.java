@@ -0,0 +1,102 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.PreferenceTrie;
+import gnu.trove.list.TDoubleList;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.util.BitSet;
+
+/**
+ * {@link BallotPiles} backed by a {@link PreferenceTrie}. Each pile is a list of trie nodes, each with a count weight
+ * that applies to all of the ballots beneath that node. Transferring a pile moves the weight of whole branches of the
+ * trie at once, so the cost of a transfer depends on the number of distinct preference branches in the pile rather than
+ * the number of ballots.
+ *
+ * @author timothy
+ */
+class TrieBallotPiles implements BallotPiles {
+
+    private final PreferenceTrie trie;
+    private final Pile[] candidatePiles;
+
+    private final TIntList nodesToVisit = new TIntArrayList();
+
+    TrieBallotPiles(PreferenceTrie trie, int numCandidates) {
+        this.trie = trie;
+        this.candidatePiles = new Pile[numCandidates];
+
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            this.candidatePiles[candidate] = new Pile();
+        }
+
+        for (int node = trie.getFirstChild(PreferenceTrie.ROOT);
+             node != PreferenceTrie.NO_NODE;
+             node = trie.getNextSibling(node)) {
+            this.candidatePiles[trie.getCandidate(node)].add(node, 1.0d);
+        }
+    }
+
+    @Override
+    public double tally(int candidate) {
+        Pile pile = this.candidatePiles[candidate];
+        double total = 0d;
+
+        for (int i = 0; i < pile.nodes.size(); i++) {
+            total += this.trie.getWeight(pile.nodes.get(i)) * pile.countWeights.get(i);
+        }
+
+        return total;
+    }
+
+    @Override
+    public void transfer(int candidate, double transferFactor, BitSet continuingCandidates, double[] tallies) {
+        Pile pile = this.candidatePiles[candidate];
+
+        this.discard(candidate);
+
+        for (int i = 0; i < pile.nodes.size(); i++) {
+            double countWeight = pile.countWeights.get(i) * transferFactor;
+
+            this.pushChildren(pile.nodes.get(i));
+
+            // Ballots ending at a node have expired, so only the children of each node need be visited. Children
+            // preferencing candidates that are no longer continuing are skipped over to their own children.
+            while (!this.nodesToVisit.isEmpty()) {
+                int node = this.nodesToVisit.removeAt(this.nodesToVisit.size() - 1);
+                int nodeCandidate = this.trie.getCandidate(node);
+
+                if (continuingCandidates.get(nodeCandidate)) {
+                    this.candidatePiles[nodeCandidate].add(node, countWeight);
+                    tallies[nodeCandidate] += this.trie.getWeight(node) * countWeight;
+                } else {
+                    this.pushChildren(node);
+                }
+            }
+        }
+    }
+
+    private void pushChildren(int node) {
+        for (int child = this.trie.getFirstChild(node);
+             child != PreferenceTrie.NO_NODE;
+             child = this.trie.getNextSibling(child)) {
+            this.nodesToVisit.add(child);
+        }
+    }
+
+    @Override
+    public void discard(int candidate) {
+        this.candidatePiles[candidate] = new Pile();
+    }
+
+    private static final class Pile {
+        private final TIntList nodes = new TIntArrayList();
+        private final TDoubleList countWeights = new TDoubleArrayList();
+
+        private void add(int node, double countWeight) {
+            this.nodes.add(node);
+            this.countWeights.add(countWeight);
+        }
+    }
+}
@@ -2,76 +2,71 @@ package au.id.tmm.hypotheticalsenate.controller.commands;
 
 import au.id.tmm.hypotheticalsenate.controller.BallotCollector;
 import au.id.tmm.hypotheticalsenate.model.AustralianState;
-import au.id.tmm.hypotheticalsenate.model.Ballot;
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
 import au.id.tmm.hypotheticalsenate.model.Election;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.OptionalInt;
-
 /**
  * An alternate {@link BallotCollector} that removes all above the line votes and weights below the line ballots
  * accordingly.
+ * <p>
+ * Note that a below the line ballot may be a bundle of several identical ballot papers, in which case its intrinsic
+ * weight is the number of papers it represents. The number of below the line first preferences of each candidate is
+ * counted as the ballot papers are loaded, so the below the line ballots are only visited once more, to reweight
+ * them. The totals are held in arrays indexed by candidate.
  *
  * @author timothy
  */
 public class BTLPreferenceBallotCollector extends BallotCollector {
 
-    private Map<Integer, Double> atlVoteTotals;
+    private double[] atlVoteTotals;
+    private double[] btlFirstPreferenceTotals;
 
     public BTLPreferenceBallotCollector(Election election, AustralianState state) {
         super(election, state);
     }
 
     @Override
-    protected List<Ballot> customiseATLBallots(List<Ballot> atlBallots) {
+    protected void customiseATLBallots(BallotStore ballots, int fromBallot, int toBallot) {
+        int numCandidates = this.getCandidates().size();
 
-        // Compute the number of first-preferenced above the line candidates
-        long numCandidates = atlBallots
-                .stream()
-                .map(Ballot::computeCurrentCandidate)
-                .filter(OptionalInt::isPresent)
-                .distinct()
-                .count();
+        this.atlVoteTotals = new double[numCandidates];
+        this.btlFirstPreferenceTotals = new double[numCandidates];
 
-        this.atlVoteTotals = new HashMap<>((int) numCandidates);
+        // For each above the line ballot, add its weight to the votes received by its first preferenced candidate,
+        // then remove it.
+        for (int ballot = fromBallot; ballot < toBallot; ballot++) {
+            int currentCandidate = ballots.computeCurrentCandidate(ballot);
 
-        // For each above the line ballot, calculate how many votes were received by each candidate and store that
-        // number in a map.
-        atlBallots
-                .stream()
-                .forEach(ballot ->
-                                ballot.computeCurrentCandidate().ifPresent(currentCandidate ->
-                                                this.atlVoteTotals.merge(
-                                                        currentCandidate,
-                                                        ballot.getIntrinsicWeight(),
-                                                        (previousWeight, newWeight) -> previousWeight + newWeight)
-                                )
-                );
+            if (currentCandidate != BallotStore.EXHAUSTED) {
+                this.atlVoteTotals[currentCandidate] += ballots.getIntrinsicWeight(ballot);
+            }
 
-        // Remove all above the line ballots.
-        return Collections.emptyList();
+            ballots.setIntrinsicWeight(ballot, 0d);
+        }
     }
 
     @Override
-    protected List<Ballot> customiseBTLBallots(List<Ballot> btlBallots) {
+    protected void btlBallotLoaded(double intrinsicWeight, int[] candidateOrder, int orderLength) {
+        if (orderLength > 0) {
+            this.btlFirstPreferenceTotals[candidateOrder[0]] += intrinsicWeight;
+        }
+    }
 
-        Map<Integer, Integer> numFirstPreferencesPerCandidate = new HashMap<>(this.atlVoteTotals.size());
+    @Override
+    protected void customiseBTLBallots(BallotStore ballots, int fromBallot, int toBallot) {
+        double[] weightFactors = new double[this.atlVoteTotals.length];
 
-        btlBallots.forEach(ballot ->
-                ballot.computeCurrentCandidate().ifPresent(firstPreferencedCandidate ->
-                        numFirstPreferencesPerCandidate.merge(firstPreferencedCandidate, 1, Math::addExact)));
+        for (int candidate = 0; candidate < weightFactors.length; candidate++) {
+            weightFactors[candidate] = 1d + (this.atlVoteTotals[candidate] / this.btlFirstPreferenceTotals[candidate]);
+        }
 
-        btlBallots.forEach(ballot ->
-                ballot.computeCurrentCandidate().ifPresent(firstPreferencedCandidate ->
-                        ballot.setIntrinsicWeight(
-                                1d + (
-                                        this.atlVoteTotals.getOrDefault(firstPreferencedCandidate, 0d) /
-                                                numFirstPreferencesPerCandidate.get(firstPreferencedCandidate)
-                                ))));
+        for (int ballot = fromBallot; ballot < toBallot; ballot++) {
+            int firstPreferencedCandidate = ballots.computeCurrentCandidate(ballot);
 
-        return btlBallots;
+            if (firstPreferencedCandidate != BallotStore.EXHAUSTED) {
+                ballots.setIntrinsicWeight(ballot,
+                        ballots.getIntrinsicWeight(ballot) * weightFactors[firstPreferencedCandidate]);
+            }
+        }
     }
 }
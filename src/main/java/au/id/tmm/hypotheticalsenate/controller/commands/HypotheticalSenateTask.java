@@ -1,12 +1,16 @@
 package au.id.tmm.hypotheticalsenate.controller.commands;
 
+import au.id.tmm.hypotheticalsenate.GUIMain;
+import au.id.tmm.hypotheticalsenate.controller.BallotCollector;
 import au.id.tmm.hypotheticalsenate.controller.Count;
+import au.id.tmm.hypotheticalsenate.controller.RawBallots;
 import au.id.tmm.hypotheticalsenate.database.HypotheticalSenateDatabase;
 import au.id.tmm.hypotheticalsenate.model.AustralianState;
 import au.id.tmm.hypotheticalsenate.model.Election;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.util.List;
 
 /**
  * @author timothy
@@ -17,11 +21,13 @@ public enum HypotheticalSenateTask {
             "Clears the database",
             (downloadDirectory, database, election, state) -> database.clear(),
             false,
+            false,
             false),
     SETUP("Setup",
             "Sets up the database with its schema, elections and states",
             (downloadDirectory, database, election, state) -> database.setup(),
             false,
+            false,
             false),
     LOAD_CANDIDATES("Load parties and candidates",
             "Loads the parties and candidates for an election into the database",
@@ -43,6 +49,12 @@ public enum HypotheticalSenateTask {
             (downloadDirectory, database, election, state) -> database.loadBelowTheLinePreferences(downloadDirectory, state, election),
             true,
             true),
+    LOAD_PACKED_BTL_VOTES("Load packed below the line votes",
+            "Loads the below the line votes for a given state and election into the database with a packed row for " +
+                    "each ballot",
+            (downloadDirectory, database, election, state) -> database.loadPackedBelowTheLinePreferences(downloadDirectory, state, election),
+            true,
+            true),
     COUNT("Count",
             "Performs a count of the votes in a given state and election",
             (downloadDirectory, database, election, state) -> new Count(database, election, state).perform(),
@@ -52,6 +64,41 @@ public enum HypotheticalSenateTask {
             "Performs a count of the votes in a given state and election with different rules",
             (downloadDirectory, database, election, state) -> new Count(database, election, state, BTLPreferenceBallotCollector::new).perform(),
             true,
+            true),
+    COMPARE_COUNTS("Compare counts",
+            "Performs both the normal and alternative counts of the votes in a given state and election, loading the " +
+                    "votes only once",
+            (downloadDirectory, database, election, state) -> {
+                RawBallots rawBallots = RawBallots.load(database, election, state,
+                        Count.getConfiguredBTLBallotSource());
+
+                new Count(database, election, state).performOn(rawBallots);
+                new Count(database, election, state, BTLPreferenceBallotCollector::new).performOn(rawBallots);
+            },
+            true,
+            true),
+    COUNT_ALL_STATES("Count all states",
+            "Performs a count of the votes in every state for a given election, counting from the ballot cache",
+            (downloadDirectory, database, election, state) -> {
+                for (AustralianState eachState : AustralianState.values()) {
+                    new Count(database, election, eachState).setUseMappedBallots(true).perform();
+                }
+            },
+            true,
+            false),
+    CHECK_QUERY_PLANS("Check query plans",
+            "Checks that the database has an index for each query made when counting the votes in a given state and " +
+                    "election",
+            (downloadDirectory, database, election, state) -> {
+                List<String> problems = new BallotCollector(election, state).checkQueryPlans(database);
+
+                if (problems.isEmpty()) {
+                    GUIMain.out.println("Every query made during a count is served by an index");
+                } else {
+                    problems.forEach(GUIMain.err::println);
+                }
+            },
+            true,
             true)
     ;
 
@@ -60,20 +107,36 @@ public enum HypotheticalSenateTask {
     private final CommandExecutor commandExecutor;
     private final boolean electionRequired;
     private final boolean stateRequired;
+    private final boolean databaseUpgraded;
 
     private HypotheticalSenateTask(String name, String description, CommandExecutor commandExecutor,
                                    boolean electionRequired, boolean stateRequired) {
+        this(name, description, commandExecutor, electionRequired, stateRequired, true);
+    }
+
+    /**
+     * @param databaseUpgraded whether the database should be {@link HypotheticalSenateDatabase#upgrade() upgraded}
+     *                         before the task is executed. This is the case for every task that uses the tables of an
+     *                         existing database.
+     */
+    private HypotheticalSenateTask(String name, String description, CommandExecutor commandExecutor,
+                                   boolean electionRequired, boolean stateRequired, boolean databaseUpgraded) {
         this.name = name;
         this.description = description;
         this.commandExecutor = commandExecutor;
         this.electionRequired = electionRequired;
         this.stateRequired = stateRequired;
+        this.databaseUpgraded = databaseUpgraded;
     }
 
     public void execute(File downloadDirectory,
                         HypotheticalSenateDatabase database,
                         Election election,
                         AustralianState state) {
+        if (this.databaseUpgraded) {
+            database.upgrade();
+        }
+
         this.commandExecutor.execute(downloadDirectory, database, election, state);
     }
 
@@ -0,0 +1,383 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.GUIMain;
+import au.id.tmm.hypotheticalsenate.model.AustralianState;
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Election;
+import au.id.tmm.hypotheticalsenate.model.MappedBallotArena;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * A cache on disk of the ballots collected for a state at an election, so that later counts need not read and convert
+ * every ballot in the database again.
+ * <p>
+ * There is a file for each election, state and variant of collector, as different collectors produce different
+ * ballots from the same data. Each file holds the candidate orders and intrinsic weights of the collected ballots,
+ * along with the IDs of the candidates in the order of the indices used in the candidate orders. Files are read by
+ * memory-mapping them, and are ignored if their format version, key, candidates or CRC-32 checksum do not match.
+ * Cached ballots can either be {@link #read(Election, AustralianState, String, int[]) read} into a {@link BallotStore}
+ * on the heap, or {@link #map(Election, AustralianState, String, int[]) mapped} into a {@link MappedBallotArena},
+ * which counts directly from the cache file.
+ * <p>
+ * The format of a file, with every value written big-endian, is:
+ * <pre>
+ *     int      magic number
+ *     int      format version
+ *     int      election ID
+ *     short    length of the state code, followed by the state code in UTF-8
+ *     short    length of the variant, followed by the variant in UTF-8
+ *     int      number of candidates, followed by an int for each candidate ID
+ *     int      number of ballots
+ *     int      total number of preferences
+ *     int[]    the offset of the candidate order of each ballot, followed by the total number of preferences
+ *     double[] the intrinsic weight of each ballot
+ *     int[]    the candidate orders of every ballot, end to end
+ *     long     the CRC-32 checksum of everything above
+ * </pre>
+ * The cache for a state or election must be {@link #invalidate(Election, AustralianState) invalidated} whenever the
+ * ballots for it in the database change.
+ *
+ * @author timothy
+ */
+public class BallotCache {
+
+    private static final int MAGIC_NUMBER = 0x48534243; // "HSBC"
+    // Files written before version 3 may be missing the final below the line ballot of a state.
+    private static final int FORMAT_VERSION = 3;
+
+    private static final String FILE_EXTENSION = ".ballots";
+
+    private final File cacheDirectory;
+
+    public BallotCache(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * Reads the cached ballots for the given election, state and variant into a {@link BallotStore}. An empty
+     * {@link Optional} is returned if there are no cached ballots, or if they were collected for a different set of
+     * candidates.
+     */
+    public Optional<BallotStore> read(Election election, AustralianState state, String variant, int[] candidateIDs) {
+        return this.openCacheFile(election, state, variant, candidateIDs).map(cachedBallots -> {
+            int numBallots = cachedBallots.getNumBallots();
+            IntBuffer orderOffsets = cachedBallots.getOrderOffsets();
+            DoubleBuffer intrinsicWeights = cachedBallots.getIntrinsicWeights();
+
+            int[] candidateOrders = new int[cachedBallots.getCandidateOrders().limit()];
+            cachedBallots.getCandidateOrders().get(candidateOrders);
+
+            BallotStore ballots = new BallotStore(numBallots, candidateOrders.length);
+
+            for (int ballot = 0; ballot < numBallots; ballot++) {
+                int orderOffset = orderOffsets.get(ballot);
+
+                ballots.add(intrinsicWeights.get(ballot), candidateOrders, orderOffset,
+                        orderOffsets.get(ballot + 1) - orderOffset);
+            }
+
+            return ballots;
+        });
+    }
+
+    /**
+     * Maps the cached ballots for the given election, state and variant into a {@link MappedBallotArena}, so that
+     * they can be counted without being copied onto the heap. An empty {@link Optional} is returned if there are no
+     * cached ballots, or if they were collected for a different set of candidates.
+     */
+    public Optional<MappedBallotArena> map(Election election,
+                                           AustralianState state,
+                                           String variant,
+                                           int[] candidateIDs) {
+        Optional<CachedBallots> cachedBallots = this.openCacheFile(election, state, variant, candidateIDs);
+
+        if (!cachedBallots.isPresent()) {
+            return Optional.empty();
+        }
+
+        try {
+            return Optional.of(MappedBallotArena.create(
+                    cachedBallots.get().getNumBallots(),
+                    cachedBallots.get().getCandidateOrders(),
+                    cachedBallots.get().getOrderOffsets(),
+                    cachedBallots.get().getIntrinsicWeights(),
+                    this.cacheDirectory));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to map the cached ballots for " + state.render(), e);
+        }
+    }
+
+    /**
+     * Maps and validates the cache file for the given election, state and variant.
+     */
+    private Optional<CachedBallots> openCacheFile(Election election,
+                                                  AustralianState state,
+                                                  String variant,
+                                                  int[] candidateIDs) {
+        File cacheFile = this.cacheFileFor(election, state, variant);
+
+        if (!cacheFile.isFile()) {
+            return Optional.empty();
+        }
+
+        try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+            // The mapping remains valid once the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            return this.readFrom(buffer, election, state, variant, candidateIDs, cacheFile);
+        } catch (IOException | RuntimeException e) {
+            GUIMain.err.println("Unable to read the ballot cache " + cacheFile + ": " + e);
+            return Optional.empty();
+        }
+    }
+
+    private Optional<CachedBallots> readFrom(ByteBuffer buffer,
+                                             Election election,
+                                             AustralianState state,
+                                             String variant,
+                                             int[] candidateIDs,
+                                             File cacheFile) {
+        if (buffer.limit() < 3 * Integer.BYTES + Long.BYTES
+                || buffer.getInt() != MAGIC_NUMBER
+                || buffer.getInt() != FORMAT_VERSION) {
+            GUIMain.out.println("Ignoring the ballot cache " + cacheFile + " as it is not in the current format");
+            return Optional.empty();
+        }
+
+        CRC32 checksum = new CRC32();
+        ByteBuffer checksummedBytes = buffer.duplicate();
+        checksummedBytes.position(0).limit(buffer.limit() - Long.BYTES);
+        checksum.update(checksummedBytes);
+
+        if (checksum.getValue() != buffer.getLong(buffer.limit() - Long.BYTES)) {
+            GUIMain.out.println("Ignoring the ballot cache " + cacheFile + " as its checksum does not match");
+            return Optional.empty();
+        }
+
+        if (buffer.getInt() != election.getID()
+                || !readString(buffer).equals(state.getCode())
+                || !readString(buffer).equals(variant)) {
+            return Optional.empty();
+        }
+
+        int[] cachedCandidateIDs = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(cachedCandidateIDs);
+        buffer.position(buffer.position() + Integer.BYTES * cachedCandidateIDs.length);
+
+        if (!Arrays.equals(cachedCandidateIDs, candidateIDs)) {
+            GUIMain.out.println("Ignoring the ballot cache " + cacheFile + " as the candidates have changed");
+            return Optional.empty();
+        }
+
+        int numBallots = buffer.getInt();
+        int numPreferences = buffer.getInt();
+
+        IntBuffer orderOffsets = sliceOf(buffer, Integer.BYTES * (numBallots + 1)).asIntBuffer();
+        DoubleBuffer intrinsicWeights = sliceOf(buffer, Double.BYTES * numBallots).asDoubleBuffer();
+        IntBuffer candidateOrders = sliceOf(buffer, Integer.BYTES * numPreferences).asIntBuffer();
+
+        return Optional.of(new CachedBallots(numBallots, orderOffsets, intrinsicWeights, candidateOrders));
+    }
+
+    /**
+     * Returns a buffer over the given number of bytes from the current position of the given buffer, and advances the
+     * given buffer past them.
+     */
+    private static ByteBuffer sliceOf(ByteBuffer buffer, int numBytes) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(numBytes);
+
+        buffer.position(buffer.position() + numBytes);
+
+        return slice;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the given ballots to the cache for the given election, state and variant. The ballots are expected to be
+     * freshly collected, so their count weights and current preferences are not recorded. Failing to write the cache
+     * is reported, but is otherwise ignored.
+     */
+    public void write(Election election,
+                      AustralianState state,
+                      String variant,
+                      int[] candidateIDs,
+                      BallotStore ballots) {
+        File cacheFile = this.cacheFileFor(election, state, variant);
+
+        try {
+            Files.createDirectories(this.cacheDirectory.toPath());
+
+            // Write to a temporary file first, so that a partially written cache is never read.
+            File temporaryFile = File.createTempFile(cacheFile.getName(), ".tmp", this.cacheDirectory);
+
+            try {
+                try (CheckedOutputStream checkedStream = new CheckedOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(temporaryFile)), new CRC32());
+                     DataOutputStream out = new DataOutputStream(checkedStream)) {
+                    this.writeTo(out, election, state, variant, candidateIDs, ballots);
+
+                    out.flush();
+                    out.writeLong(checkedStream.getChecksum().getValue());
+                }
+
+                Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporaryFile.toPath());
+            }
+        } catch (IOException e) {
+            GUIMain.err.println("Unable to write the ballot cache " + cacheFile + ": " + e);
+        }
+    }
+
+    private void writeTo(DataOutputStream out,
+                         Election election,
+                         AustralianState state,
+                         String variant,
+                         int[] candidateIDs,
+                         BallotStore ballots) throws IOException {
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(FORMAT_VERSION);
+
+        out.writeInt(election.getID());
+        writeString(out, state.getCode());
+        writeString(out, variant);
+
+        out.writeInt(candidateIDs.length);
+        for (int candidateID : candidateIDs) {
+            out.writeInt(candidateID);
+        }
+
+        int numPreferences = 0;
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            numPreferences += ballots.getOrderLength(ballot);
+        }
+
+        out.writeInt(ballots.size());
+        out.writeInt(numPreferences);
+
+        int orderOffset = 0;
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            out.writeInt(orderOffset);
+            orderOffset += ballots.getOrderLength(ballot);
+        }
+        out.writeInt(orderOffset);
+
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            out.writeDouble(ballots.getIntrinsicWeight(ballot));
+        }
+
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            for (int i = 0; i < ballots.getOrderLength(ballot); i++) {
+                out.writeInt(ballots.getPreference(ballot, i));
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Removes the cached ballots of every variant for the given state at the given election.
+     */
+    public void invalidate(Election election, AustralianState state) {
+        this.deleteCacheFiles(election.getID() + "-" + state.getCode() + "-");
+    }
+
+    /**
+     * Removes the cached ballots of every variant for every state at the given election.
+     */
+    public void invalidate(Election election) {
+        this.deleteCacheFiles(election.getID() + "-");
+    }
+
+    /**
+     * Removes every cached ballot.
+     */
+    public void invalidateAll() {
+        this.deleteCacheFiles("");
+    }
+
+    private void deleteCacheFiles(String prefix) {
+        File[] cacheFiles = this.cacheDirectory.listFiles(
+                (directory, name) -> name.startsWith(prefix) && name.endsWith(FILE_EXTENSION));
+
+        if (cacheFiles != null) {
+            for (File cacheFile : cacheFiles) {
+                if (!cacheFile.delete()) {
+                    throw new RuntimeException("Unable to delete the ballot cache " + cacheFile);
+                }
+            }
+        }
+    }
+
+    /**
+     * The sections of a validated cache file.
+     */
+    private static final class CachedBallots {
+        private final int numBallots;
+        private final IntBuffer orderOffsets;
+        private final DoubleBuffer intrinsicWeights;
+        private final IntBuffer candidateOrders;
+
+        private CachedBallots(int numBallots,
+                              IntBuffer orderOffsets,
+                              DoubleBuffer intrinsicWeights,
+                              IntBuffer candidateOrders) {
+            this.numBallots = numBallots;
+            this.orderOffsets = orderOffsets;
+            this.intrinsicWeights = intrinsicWeights;
+            this.candidateOrders = candidateOrders;
+        }
+
+        public int getNumBallots() {
+            return numBallots;
+        }
+
+        public IntBuffer getOrderOffsets() {
+            return orderOffsets;
+        }
+
+        public DoubleBuffer getIntrinsicWeights() {
+            return intrinsicWeights;
+        }
+
+        public IntBuffer getCandidateOrders() {
+            return candidateOrders;
+        }
+    }
+
+    private File cacheFileFor(Election election, AustralianState state, String variant) {
+        return new File(this.cacheDirectory,
+                election.getID() + "-" + state.getCode() + "-" + variant + FILE_EXTENSION);
+    }
+}
@@ -33,6 +33,13 @@ public class DataSource {
         this.downloadDirectory = downloadDirectory;
     }
 
+    /**
+     * Returns the name of the file from which this data source is read.
+     */
+    public String getName() {
+        return this.aecResource.getZipEntryName().orElse(this.getExpectedLocalFile().getName());
+    }
+
     public boolean isDownloaded() {
         File file = getExpectedLocalFile();
         return file.exists() && file.isFile();
@@ -0,0 +1,261 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.com.bytecode.opencsv.CSVReader;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Reads the lines of a {@link DataSource} on a thread of its own, extracting the parameters of each insert from each
+ * line, and hands them to the thread writing to the database in {@link Chunk chunks} through a bounded queue. The
+ * decompression and parsing of the source therefore overlap with the inserts, and the reader blocks once it is a full
+ * queue ahead of the writer.
+ * <p>
+ * A single reader is used, as the lines of a source can only be read in order, and so that the rows are inserted in the
+ * order they were read, which matters to statements such as {@code INSERT OR IGNORE}. Where only one processor is
+ * available there is nothing to overlap, so each chunk is instead read by the writer as it is taken.
+ *
+ * @author timothy
+ */
+class ExtractedRows implements AutoCloseable {
+
+    static final int LINES_PER_CHUNK = 1000;
+    static final int QUEUE_CAPACITY = 64;
+
+    private static final Chunk END_OF_ROWS = new Chunk();
+
+    private final String sourceName;
+    private final CSVReader csvReader;
+    private final List<Function<String[], List<Object>>> valueExtractors;
+    private final BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    @Nullable
+    private final ExecutorService executor;
+
+    private boolean finishedGroups = false;
+    private volatile boolean closed = false;
+    @Nullable
+    private volatile Throwable readFailure;
+
+    private ExtractedRows(DataSource dataSource,
+                          List<Function<String[], List<Object>>> valueExtractors,
+                          boolean readInBackground) throws IOException {
+        this.sourceName = dataSource.getName();
+        this.csvReader = dataSource.getCSVReader();
+        this.valueExtractors = valueExtractors;
+
+        try {
+            this.csvReader.readNext(); // Read info line
+            this.csvReader.readNext(); // Read column header line
+        } catch (IOException e) {
+            this.csvReader.close();
+            throw e;
+        }
+
+        this.executor = readInBackground ? Executors.newSingleThreadExecutor() : null;
+    }
+
+    /**
+     * Starts reading the lines of the given {@link DataSource} after its info and column header lines, applying each
+     * of the given functions to each line. A function returning {@code null} for a line extracts no row from it.
+     */
+    static ExtractedRows startReading(DataSource dataSource, List<Function<String[], List<Object>>> valueExtractors)
+            throws IOException {
+        return startReading(dataSource, valueExtractors, Runtime.getRuntime().availableProcessors() > 1);
+    }
+
+    /**
+     * Starts reading the lines of the given {@link DataSource}, either on a thread of its own or as each chunk is
+     * taken.
+     */
+    static ExtractedRows startReading(DataSource dataSource,
+                                      List<Function<String[], List<Object>>> valueExtractors,
+                                      boolean readInBackground) throws IOException {
+        ExtractedRows extractedRows = new ExtractedRows(dataSource, valueExtractors, readInBackground);
+
+        if (extractedRows.executor != null) {
+            extractedRows.executor.execute(extractedRows::readInBackground);
+        }
+
+        return extractedRows;
+    }
+
+    private void readInBackground() {
+        try {
+            Chunk chunk;
+
+            while ((chunk = this.readChunk()) != null) {
+                if (!this.put(chunk)) {
+                    return;
+                }
+            }
+        } catch (Throwable e) {
+            this.readFailure = e;
+        } finally {
+            // Always mark the end of the rows, so that the writer is never left waiting on a reader that has stopped.
+            this.put(END_OF_ROWS);
+        }
+    }
+
+    /**
+     * Reads the next chunk of lines, returning {@code null} once every line has been read. The chunk holding the last
+     * line also holds the last row of each {@link GroupingValueExtractor}.
+     */
+    @Nullable
+    private Chunk readChunk() throws IOException {
+        Chunk chunk = new Chunk();
+
+        while (chunk.numLines < LINES_PER_CHUNK) {
+            String[] nextLine = this.csvReader.readNext();
+
+            if (nextLine == null) {
+                this.finishGroups(chunk);
+                break;
+            }
+
+            chunk.numLines++;
+
+            for (int statementIndex = 0; statementIndex < this.valueExtractors.size(); statementIndex++) {
+                chunk.add(statementIndex, this.valueExtractors.get(statementIndex).apply(nextLine));
+            }
+        }
+
+        return chunk.numLines > 0 || chunk.getNumRows() > 0 ? chunk : null;
+    }
+
+    private void finishGroups(Chunk chunk) {
+        if (this.finishedGroups) {
+            return;
+        }
+
+        for (int statementIndex = 0; statementIndex < this.valueExtractors.size(); statementIndex++) {
+            Function<String[], List<Object>> valueExtractor = this.valueExtractors.get(statementIndex);
+
+            if (valueExtractor instanceof GroupingValueExtractor) {
+                chunk.add(statementIndex, ((GroupingValueExtractor) valueExtractor).finish());
+            }
+        }
+
+        this.finishedGroups = true;
+    }
+
+    /**
+     * Puts the given chunk on the queue, waiting for space if the writer has fallen behind. Returns {@code false} if
+     * reading has been abandoned.
+     */
+    private boolean put(Chunk chunk) {
+        try {
+            if (!this.closed) {
+                this.queue.put(chunk);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return !this.closed && !Thread.currentThread().isInterrupted();
+    }
+
+    /**
+     * Returns the next chunk of rows, waiting for it to be read if need be, or {@code null} once every line has been
+     * read, however many times it is called after that. If the reader failed, its failure is thrown once every chunk
+     * read before it has been taken.
+     */
+    @Nullable
+    Chunk take() throws IOException {
+        if (this.executor == null) {
+            return this.readChunk();
+        }
+
+        Chunk chunk;
+
+        try {
+            chunk = this.queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while reading " + this.sourceName, e);
+        }
+
+        if (chunk != END_OF_ROWS) {
+            return chunk;
+        }
+
+        // Leave the end of the rows on the queue, so that any later call sees it rather than waiting forever.
+        this.queue.offer(END_OF_ROWS);
+
+        Throwable readFailure = this.readFailure;
+
+        if (readFailure instanceof Error) {
+            throw (Error) readFailure;
+        } else if (readFailure instanceof IOException) {
+            throw new IOException("Unable to read " + this.sourceName, readFailure);
+        } else if (readFailure != null) {
+            throw new RuntimeException("Unable to extract rows from " + this.sourceName, readFailure);
+        }
+
+        return null;
+    }
+
+    /**
+     * Abandons reading, if the reader has not already finished, and closes the source.
+     */
+    @Override
+    public void close() throws IOException {
+        this.closed = true;
+
+        if (this.executor != null) {
+            this.queue.clear();
+            this.executor.shutdownNow();
+
+            try {
+                this.executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        this.csvReader.close();
+    }
+
+    /**
+     * The rows extracted from a run of consecutive lines, in the order they were extracted, each with the index of the
+     * statement it is to be inserted by.
+     */
+    static final class Chunk {
+
+        private final TIntList statementIndices = new TIntArrayList();
+        private final List<List<Object>> paramValues = new ArrayList<>();
+        private int numLines = 0;
+
+        private void add(int statementIndex, @Nullable List<Object> paramValues) {
+            if (paramValues != null) {
+                this.statementIndices.add(statementIndex);
+                this.paramValues.add(paramValues);
+            }
+        }
+
+        int getNumLines() {
+            return this.numLines;
+        }
+
+        int getNumRows() {
+            return this.statementIndices.size();
+        }
+
+        int getStatementIndex(int row) {
+            return this.statementIndices.get(row);
+        }
+
+        List<Object> getParamValues(int row) {
+            return this.paramValues.get(row);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.model.AustralianState;
+import au.id.tmm.hypotheticalsenate.model.Election;
+import au.id.tmm.hypotheticalsenate.model.GroupVotingTicket;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache in memory of the group voting tickets of each state at an election, so that their candidate orders are
+ * built once and then shared by every ballot and count that uses them, rather than being rebuilt from the database
+ * each time the above the line ballots are collected.
+ * <p>
+ * The tickets of a state are held by group, in ticket order, along with the IDs of the candidates in the order of the
+ * indices used in the candidate orders. The cache for an election must be {@link #invalidate(Election) invalidated}
+ * whenever its candidates or group voting tickets in the database change.
+ * <p>
+ * A single cache is kept for each database file, and is shared by every {@code HypotheticalSenateDatabase} opened on
+ * that file for the life of the process. See {@link HypotheticalSenateDatabase#getGroupVotingTicketCache()}.
+ *
+ * @author timothy
+ */
+public class GroupVotingTicketCache {
+
+    private final Map<Integer, Map<AustralianState, CachedTickets>> ticketsByElection = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the cached tickets of the given state at the given election, keyed by their owner group. An empty
+     * {@link Optional} is returned if there are no cached tickets, or if they were built for a different set of
+     * candidates.
+     */
+    public Optional<ListMultimap<String, GroupVotingTicket>> get(Election election,
+                                                                 AustralianState state,
+                                                                 int[] candidateIDs) {
+        Map<AustralianState, CachedTickets> ticketsByState = this.ticketsByElection.get(election.getID());
+
+        if (ticketsByState == null) {
+            return Optional.empty();
+        }
+
+        CachedTickets cachedTickets = ticketsByState.get(state);
+
+        if (cachedTickets == null || !Arrays.equals(cachedTickets.candidateIDs, candidateIDs)) {
+            return Optional.empty();
+        }
+
+        return Optional.of(cachedTickets.ticketsByGroup);
+    }
+
+    /**
+     * Caches the given tickets of the given state at the given election, returning the immutable copy that was
+     * cached.
+     */
+    public ListMultimap<String, GroupVotingTicket> put(Election election,
+                                                       AustralianState state,
+                                                       int[] candidateIDs,
+                                                       ListMultimap<String, GroupVotingTicket> ticketsByGroup) {
+        CachedTickets cachedTickets = new CachedTickets(candidateIDs.clone(),
+                ImmutableListMultimap.copyOf(ticketsByGroup));
+
+        this.ticketsByElection
+                .computeIfAbsent(election.getID(), electionID -> new ConcurrentHashMap<>())
+                .put(state, cachedTickets);
+
+        return cachedTickets.ticketsByGroup;
+    }
+
+    public void invalidate(Election election) {
+        this.ticketsByElection.remove(election.getID());
+    }
+
+    public void invalidateAll() {
+        this.ticketsByElection.clear();
+    }
+
+    private static final class CachedTickets {
+        private final int[] candidateIDs;
+        private final ImmutableListMultimap<String, GroupVotingTicket> ticketsByGroup;
+
+        private CachedTickets(int[] candidateIDs, ImmutableListMultimap<String, GroupVotingTicket> ticketsByGroup) {
+            this.candidateIDs = candidateIDs;
+            this.ticketsByGroup = ticketsByGroup;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A function extracting the values of an insert from the lines of a {@link DataSource}, which combines each run of
+ * adjacent lines belonging to the same group into a single row. It is applied to each line in turn, returning the
+ * values of the previous group when a line starts a new one, and {@code null} otherwise. Once every line has been read
+ * {@link #finish()} is called, to return the values of the last group.
+ *
+ * @author timothy
+ */
+interface GroupingValueExtractor extends Function<String[], List<Object>> {
+
+    /**
+     * Returns the values of the group in progress once every line has been read, or {@code null} if there were no
+     * lines.
+     */
+    @Nullable
+    public List<Object> finish();
+}
@@ -1,26 +1,28 @@
 package au.id.tmm.hypotheticalsenate.database;
 
-import au.com.bytecode.opencsv.CSVReader;
 import au.id.tmm.hypotheticalsenate.GUIMain;
 import au.id.tmm.hypotheticalsenate.model.AustralianState;
 import au.id.tmm.hypotheticalsenate.model.Election;
 import org.apache.commons.io.IOUtils;
 
+import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
@@ -30,13 +32,51 @@ public class HypotheticalSenateDatabase {
 
     private static final String SQLITE_DRIVER_NAME = "org.sqlite.JDBC";
     private static final String CREATE_TABLES_SCRIPT_LOCATION = "/setupDatabase.sql";
+    private static final String UPGRADE_SCRIPT_LOCATION = "/upgradeDatabase.sql";
+    private static final String BALLOT_CACHE_DIRECTORY_SUFFIX = ".ballotcache";
+
+    /**
+     * The system property which, when {@code true}, has data loaded into the database in
+     * {@link #setBulkLoad(boolean) bulk load mode} by default.
+     */
+    public static final String BULK_LOAD_PROPERTY = "hypotheticalsenate.database.bulkLoad";
+
+    private static final String[] BULK_LOAD_PRAGMAS = {
+            "PRAGMA journal_mode = MEMORY;",
+            "PRAGMA synchronous = OFF;",
+            "PRAGMA cache_size = -262144;", // 256MiB
+            "PRAGMA temp_store = MEMORY;",
+    };
+
+    // The group voting ticket cache of each database file, which is shared by every instance opened on that file, as a
+    // new instance is opened for each task.
+    private static final Map<File, GroupVotingTicketCache> GROUP_VOTING_TICKET_CACHES = new ConcurrentHashMap<>();
+
+    /**
+     * The version of the schema created by {@link #createTables()}, which is kept in the {@code user_version} of the
+     * database. Databases created before the schema was versioned have a version of {@code 0}, and are brought up to
+     * this version by {@link #upgrade()}.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    public static final int DEFAULT_INSERT_BATCH_SIZE = 1000;
+    public static final int DEFAULT_BATCHES_PER_COMMIT = 100;
 
     private final String databaseUrl;
     private final File dbFile;
+    private final BallotCache ballotCache;
+    private final GroupVotingTicketCache groupVotingTicketCache;
+
+    private int insertBatchSize = DEFAULT_INSERT_BATCH_SIZE;
+    private int batchesPerCommit = DEFAULT_BATCHES_PER_COMMIT;
+    private boolean bulkLoad = Boolean.getBoolean(BULK_LOAD_PROPERTY);
 
     public HypotheticalSenateDatabase(File dbFile) {
         this.dbFile = dbFile;
         this.databaseUrl = "jdbc:sqlite:" + dbFile.getPath();
+        this.ballotCache = new BallotCache(new File(dbFile.getPath() + BALLOT_CACHE_DIRECTORY_SUFFIX));
+        this.groupVotingTicketCache = GROUP_VOTING_TICKET_CACHES.computeIfAbsent(dbFile.getAbsoluteFile(),
+                file -> new GroupVotingTicketCache());
 
         try {
             Class.forName(SQLITE_DRIVER_NAME);
@@ -45,8 +85,65 @@ public class HypotheticalSenateDatabase {
         }
     }
 
+    /**
+     * Returns the cache of collected ballots kept alongside this database. The cache is invalidated whenever ballots
+     * are loaded into the database.
+     */
+    public BallotCache getBallotCache() {
+        return ballotCache;
+    }
+
+    /**
+     * Returns the cache of group voting tickets shared by the counts performed against this database file in this
+     * process, including those performed through other instances. The cache is invalidated whenever candidates or group
+     * voting tickets are loaded into the database, or the database is cleared.
+     */
+    public GroupVotingTicketCache getGroupVotingTicketCache() {
+        return groupVotingTicketCache;
+    }
+
+    /**
+     * Sets the number of rows inserted by each batch when loading data into the database.
+     */
+    public HypotheticalSenateDatabase setInsertBatchSize(int insertBatchSize) {
+        if (insertBatchSize < 1) {
+            throw new IllegalArgumentException("The insert batch size must be at least 1");
+        }
+
+        this.insertBatchSize = insertBatchSize;
+
+        return this;
+    }
+
+    /**
+     * Sets the number of insert batches executed between each commit when loading data into the database.
+     */
+    public HypotheticalSenateDatabase setBatchesPerCommit(int batchesPerCommit) {
+        if (batchesPerCommit < 1) {
+            throw new IllegalArgumentException("The number of batches per commit must be at least 1");
+        }
+
+        this.batchesPerCommit = batchesPerCommit;
+
+        return this;
+    }
+
+    /**
+     * Sets whether data should be loaded in bulk load mode. In this mode the connection's journal is kept in memory
+     * and is not synced to disk, and rows are inserted into {@link StagingTables staging tables} without keys, which
+     * are copied into the keyed tables in a single sorted pass once every row has been read. This is much faster for
+     * large loads, but the database may be corrupted if the process is interrupted while loading.
+     */
+    public HypotheticalSenateDatabase setBulkLoad(boolean bulkLoad) {
+        this.bulkLoad = bulkLoad;
+
+        return this;
+    }
+
     public void clear() {
         GUIMain.out.println("Clearing database...");
+        this.ballotCache.invalidateAll();
+        this.groupVotingTicketCache.invalidateAll();
         if (this.dbFile.exists()) {
             this.runWithConnection((connection, resources) -> {
                 Statement statement = connection.createStatement();
@@ -76,6 +173,49 @@ public class HypotheticalSenateDatabase {
 
             statement.executeUpdate(IOUtils.toString(
                     HypotheticalSenateDatabase.class.getResourceAsStream(CREATE_TABLES_SCRIPT_LOCATION)));
+            statement.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION + ";");
+        });
+    }
+
+    /**
+     * Brings the tables of a database created before the current {@link #SCHEMA_VERSION} up to date. The primary keys
+     * of the tables read during a count did not lead with the election and state in these databases, and cannot be
+     * changed in place, so each of them is given a covering index that does. The packed below the line ballot table
+     * is also created if it is missing. This does nothing to a database that is up to date, or that has no tables.
+     */
+    public void upgrade() {
+        if (!this.dbFile.exists()) {
+            return;
+        }
+
+        this.runWithConnection((connection, resources) -> {
+            Statement statement = connection.createStatement();
+
+            resources.add(statement);
+
+            ResultSet versionResultSet = statement.executeQuery("PRAGMA user_version;");
+            resources.add(versionResultSet);
+            int schemaVersion = versionResultSet.getInt(1);
+
+            ResultSet tablesResultSet = statement.executeQuery(
+                    "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'BelowTheLineBallot';");
+            resources.add(tablesResultSet);
+            boolean hasTables = tablesResultSet.getInt(1) > 0;
+
+            if (schemaVersion >= SCHEMA_VERSION || !hasTables) {
+                return;
+            }
+
+            GUIMain.out.println("Upgrading database from schema version " + schemaVersion + " to " + SCHEMA_VERSION
+                    + "...");
+
+            connection.setAutoCommit(false);
+
+            statement.executeUpdate(IOUtils.toString(
+                    HypotheticalSenateDatabase.class.getResourceAsStream(UPGRADE_SCRIPT_LOCATION)));
+            statement.executeUpdate("PRAGMA user_version = " + SCHEMA_VERSION + ";");
+
+            connection.commit();
         });
     }
 
@@ -120,6 +260,8 @@ public class HypotheticalSenateDatabase {
 
     public void loadPartiesAndCandidates(File downloadDirectory, Election election) {
         GUIMain.out.println("Loading parties and candidates into database...");
+        this.ballotCache.invalidate(election);
+        this.groupVotingTicketCache.invalidate(election);
 
         Map<String, Function<String[], List<Object>>> map = new LinkedHashMap<>(2);
 
@@ -143,6 +285,8 @@ public class HypotheticalSenateDatabase {
 
     public void loadGroupVotingTickets(File downloadDirectory, Election election) {
         GUIMain.out.println("Loading group voting tickets into database...");
+        this.ballotCache.invalidate(election);
+        this.groupVotingTicketCache.invalidate(election);
 
         Map<String, Function<String[], List<Object>>> map = new LinkedHashMap<>(2);
 
@@ -178,6 +322,7 @@ public class HypotheticalSenateDatabase {
 
     public void loadAboveTheLineVotes(File downloadDirectory, Election election) {
         GUIMain.out.println("Loading above the line votes into database...");
+        this.ballotCache.invalidate(election);
 
         Map<String, Function<String[], List<Object>>> map = new LinkedHashMap<>(1);
 
@@ -198,6 +343,7 @@ public class HypotheticalSenateDatabase {
 
     public void loadBelowTheLinePreferences(File downloadDirectory, AustralianState state, Election election) {
         GUIMain.out.println("Loading below the line preferences for " + state.render() + " into database...");
+        this.ballotCache.invalidate(election, state);
         Map<String, Function<String[], List<Object>>> map = new LinkedHashMap<>(1);
 
         map.put("INSERT INTO BelowTheLineBallot " +
@@ -220,17 +366,66 @@ public class HypotheticalSenateDatabase {
         this.loadFromDataSource(new DataSource(AECResource.btlPreferences(election, state), downloadDirectory), map);
     }
 
-    private int pairingFunction(int a, int b) {
+    /**
+     * Loads the below the line preferences for the given state into the {@code PackedBelowTheLineBallot} table, with a
+     * row for each ballot holding its preferences {@link PackedPreferences packed} into a blob. This table is much
+     * smaller than the {@code BelowTheLineBallot} table, and is much faster to read. The preferences of each ballot
+     * are expected to be adjacent in the source data.
+     */
+    public void loadPackedBelowTheLinePreferences(File downloadDirectory, AustralianState state, Election election) {
+        GUIMain.out.println("Loading packed below the line preferences for " + state.render() + " into database...");
+        this.ballotCache.invalidate(election, state);
+        Map<String, Function<String[], List<Object>>> map = new LinkedHashMap<>(1);
+
+        map.put("INSERT INTO PackedBelowTheLineBallot " +
+                        "(electionID, stateCode, ballotID, preferences) " +
+                        "VALUES (?, ?, ?, ?)",
+                new PackedBallotExtractor(election, state));
+
+        this.loadFromDataSource(new DataSource(AECResource.btlPreferences(election, state), downloadDirectory), map);
+    }
+
+    /**
+     * Parses a preference as SQLite would convert it to an integer, taking any leading integer and otherwise giving
+     * {@code 0}, so that blank and non-numeric marks are treated as they are in the {@code BelowTheLineBallot} table.
+     */
+    private static int parsePreference(String preference) {
+        int position = 0;
+        int length = preference.length();
+
+        while (position < length && Character.isWhitespace(preference.charAt(position))) {
+            position++;
+        }
+
+        boolean negative = position < length && preference.charAt(position) == '-';
+        if (negative || (position < length && preference.charAt(position) == '+')) {
+            position++;
+        }
+
+        int value = 0;
+
+        while (position < length && Character.isDigit(preference.charAt(position))) {
+            value = 10 * value + (preference.charAt(position++) - '0');
+        }
+
+        return negative ? -value : value;
+    }
+
+    private static int pairingFunction(int a, int b) {
         return (a + b) * (a + b + 1) / 2 + a;
     }
 
     /**
-     * Loads data from the given {@link DataSource} into the database, using the given map of SQL insert statements
-     * and associated functions. Each {@link Function} extracts values from a row of the csv data source. These values
-     * are then inserted into the parametrised SQL insert string.
+     * Inserts the rows of the given {@link DataSource} using each of the given insert statements, with the parameters
+     * of each statement extracted from each row by the corresponding function. A row is skipped by a statement whose
+     * function returns {@code null} for it.
      * <p>
-     * Note that the {@link Function}s in the map may return null, which means that we should not execute an inser this
-     * time.
+     * The source is read and the parameters extracted on a separate thread by {@link ExtractedRows}, so that this
+     * overlaps with the inserts, which are all executed on the calling thread.
+     * <p>
+     * The inserts of each statement are executed in batches of {@link #setInsertBatchSize(int) the insert batch size},
+     * and committed after every {@link #setBatchesPerCommit(int) given number of batches}. In
+     * {@link #setBulkLoad(boolean) bulk load mode} the rows are staged, and then copied to their tables at the end.
      */
     private void loadFromDataSource(DataSource dataSource,
                                     Map<String, Function<String[], List<Object>>> sqlInsertsAndValueExtractors) {
@@ -239,52 +434,130 @@ public class HypotheticalSenateDatabase {
         }
 
         this.runWithConnection((connection, resources) -> {
+            @Nullable StagingTables stagingTables = null;
+
+            if (this.bulkLoad) {
+                applyBulkLoadPragmas(connection, resources);
+                stagingTables = new StagingTables(connection, resources);
+            }
+
             connection.setAutoCommit(false);
 
-            Map<PreparedStatement, Function<String[], List<Object>>> statementValueExtractorMap = new LinkedHashMap<>();
+            int numStatements = sqlInsertsAndValueExtractors.size();
+            PreparedStatement[] statements = new PreparedStatement[numStatements];
+            List<Function<String[], List<Object>>> valueExtractors = new ArrayList<>(numStatements);
+            int[] batchedRows = new int[numStatements];
 
-            for (String sql : sqlInsertsAndValueExtractors.keySet()) {
-                statementValueExtractorMap.put(connection.prepareStatement(sql),
-                        sqlInsertsAndValueExtractors.get(sql));
+            for (Map.Entry<String, Function<String[], List<Object>>> sqlInsertAndValueExtractor
+                    : sqlInsertsAndValueExtractors.entrySet()) {
+                String insertSql = stagingTables != null
+                        ? stagingTables.stage(sqlInsertAndValueExtractor.getKey())
+                        : sqlInsertAndValueExtractor.getKey();
+
+                PreparedStatement statement = connection.prepareStatement(insertSql);
+                resources.add(statement);
+
+                statements[valueExtractors.size()] = statement;
+                valueExtractors.add(sqlInsertAndValueExtractor.getValue());
             }
 
-            CSVReader csvReader = dataSource.getCSVReader();
-            resources.add(csvReader);
-            csvReader.readNext(); // Read info line
-            csvReader.readNext(); // Read column header line
-
-            String[] nextLine;
-
-            while ((nextLine = csvReader.readNext()) != null) {
-                for (Map.Entry<PreparedStatement, Function<String[], List<Object>>> currentEntry
-                        : statementValueExtractorMap.entrySet()) {
-
-                    PreparedStatement preparedStatement = currentEntry.getKey();
-                    resources.add(preparedStatement);
-                    Optional<List<Object>> paramValues = Optional.ofNullable(currentEntry.getValue().apply(nextLine));
-
-                    if (paramValues.isPresent()) {
-                        for (int paramIndex = 0; paramIndex < paramValues.get().size(); paramIndex++) {
-                            Object value = paramValues.get().get(paramIndex);
-                            if (value instanceof String) {
-                                preparedStatement.setString(paramIndex + 1, (String) value);
-                            } else if (value instanceof Integer) {
-                                preparedStatement.setInt(paramIndex + 1, (Integer) value);
-                            } else {
-                                throw new RuntimeException("Unrecognised data type " + value.getClass());
-                            }
+            long startTime = System.nanoTime();
+            long numLines = 0;
+            long numRowsInserted = 0;
+            int batchesSinceCommit = 0;
+
+            ExtractedRows extractedRows = ExtractedRows.startReading(dataSource, valueExtractors);
+            resources.add(extractedRows);
+
+            ExtractedRows.Chunk chunk;
+
+            while ((chunk = extractedRows.take()) != null) {
+                numLines += chunk.getNumLines();
+
+                for (int row = 0; row < chunk.getNumRows(); row++) {
+                    int statementIndex = chunk.getStatementIndex(row);
+
+                    PreparedStatement preparedStatement = statements[statementIndex];
+                    setParameters(preparedStatement, chunk.getParamValues(row));
+                    preparedStatement.addBatch();
+
+                    if (++batchedRows[statementIndex] == this.insertBatchSize) {
+                        numRowsInserted += sumUpdateCounts(preparedStatement.executeBatch());
+                        batchedRows[statementIndex] = 0;
+
+                        if (++batchesSinceCommit == this.batchesPerCommit) {
+                            connection.commit();
+                            batchesSinceCommit = 0;
                         }
                     }
+                }
+            }
 
-                    preparedStatement.execute();
+            for (int statementIndex = 0; statementIndex < numStatements; statementIndex++) {
+                if (batchedRows[statementIndex] > 0) {
+                    numRowsInserted += sumUpdateCounts(statements[statementIndex].executeBatch());
                 }
             }
 
+            if (stagingTables != null) {
+                // Rows are only dropped by a conflict clause once they are copied from the staging tables.
+                numRowsInserted = stagingTables.copyToTargetTables();
+            }
+
             connection.commit();
+
+            double elapsedSeconds = (System.nanoTime() - startTime) / 1e9d;
+
+            GUIMain.out.println(String.format("Inserted %,d rows from %,d lines of %s in %.1fs (%,.0f rows per second)",
+                    numRowsInserted, numLines, dataSource.getName(), elapsedSeconds,
+                    numRowsInserted / Math.max(elapsedSeconds, 1e-9d)));
         });
     }
 
-    private Connection getConnection() {
+    private static void applyBulkLoadPragmas(Connection connection, Collection<AutoCloseable> resources)
+            throws SQLException {
+        Statement statement = connection.createStatement();
+        resources.add(statement);
+
+        for (String pragma : BULK_LOAD_PRAGMAS) {
+            statement.execute(pragma);
+        }
+    }
+
+    /**
+     * Returns the number of rows changed by an executed batch. Rows ignored by a conflict clause change nothing.
+     */
+    private static long sumUpdateCounts(int[] updateCounts) {
+        long total = 0;
+
+        for (int updateCount : updateCounts) {
+            total += updateCount == Statement.SUCCESS_NO_INFO ? 1 : updateCount;
+        }
+
+        return total;
+    }
+
+    private static void setParameters(PreparedStatement preparedStatement, List<Object> paramValues)
+            throws SQLException {
+        for (int paramIndex = 0; paramIndex < paramValues.size(); paramIndex++) {
+            Object value = paramValues.get(paramIndex);
+            if (value instanceof String) {
+                preparedStatement.setString(paramIndex + 1, (String) value);
+            } else if (value instanceof Integer) {
+                preparedStatement.setInt(paramIndex + 1, (Integer) value);
+            } else if (value instanceof byte[]) {
+                preparedStatement.setBytes(paramIndex + 1, (byte[]) value);
+            } else {
+                throw new RuntimeException("Unrecognised data type " + value.getClass());
+            }
+        }
+    }
+
+    /**
+     * Opens a new connection to the database. Connections are opened one at a time, as the SQLite driver can crash
+     * when several threads open connections at once. Once open, connections can be used concurrently.
+     */
+    private synchronized Connection getConnection() {
         try {
             return DriverManager.getConnection(databaseUrl);
         } catch (SQLException e) {
@@ -325,6 +598,46 @@ public class HypotheticalSenateDatabase {
         }
     }
 
+    /**
+     * Packs the preferences on each line of a below the line preferences source into a row for each ballot.
+     */
+    private static class PackedBallotExtractor implements GroupingValueExtractor {
+
+        private final Election election;
+        private final AustralianState state;
+        private final PackedPreferences.Packer packer = new PackedPreferences.Packer();
+        private int currentBallotID;
+
+        private PackedBallotExtractor(Election election, AustralianState state) {
+            this.election = election;
+            this.state = state;
+        }
+
+        @Override
+        public List<Object> apply(String[] row) {
+            int ballotID = pairingFunction(Integer.parseInt(row[2]), Integer.parseInt(row[3]));
+
+            List<Object> previousBallot = ballotID != this.currentBallotID ? this.finish() : null;
+
+            this.currentBallotID = ballotID;
+            this.packer.add(Integer.parseInt(row[0]), parsePreference(row[1]));
+
+            return previousBallot;
+        }
+
+        @Override
+        public List<Object> finish() {
+            if (this.packer.isEmpty()) {
+                return null;
+            }
+
+            byte[] preferences = this.packer.toByteArray();
+            this.packer.reset();
+
+            return Arrays.asList(this.election.getID(), this.state.getCode(), this.currentBallotID, preferences);
+        }
+    }
+
     /**
      * Functional interface passed into {@link #runWithConnection(ConnectionConsumer)}. The connection is provided,
      * as long as a collection to which any {@link AutoCloseable} resources can be added. The closing of these
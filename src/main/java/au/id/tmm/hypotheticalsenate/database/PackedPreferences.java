@@ -0,0 +1,94 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Packs the preferences of a below the line ballot into a blob, as stored in the {@code PackedBelowTheLineBallot}
+ * table.
+ * <p>
+ * A blob holds a {@code (candidateID, preference)} pair for each preference marked on the ballot, in the order they
+ * appear in the source data. Each value is written as a little-endian base 128 varint, with the preference first
+ * zigzag encoded so that the rare negative value stays short, so a typical preference takes 4 bytes.
+ *
+ * @author timothy
+ */
+public final class PackedPreferences {
+
+    private PackedPreferences() {
+    }
+
+    /**
+     * Receives each preference decoded by {@link #unpack(byte[], PreferenceConsumer)}.
+     */
+    @FunctionalInterface
+    public static interface PreferenceConsumer {
+        public void preference(int candidateID, int preference);
+    }
+
+    /**
+     * Accumulates the preferences of one ballot at a time.
+     */
+    public static final class Packer {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public void add(int candidateID, int preference) {
+            this.writeVarint(candidateID);
+            this.writeVarint((preference << 1) ^ (preference >> 31));
+        }
+
+        public boolean isEmpty() {
+            return this.bytes.size() == 0;
+        }
+
+        /**
+         * Returns the blob holding the preferences added since the packer was last reset.
+         */
+        public byte[] toByteArray() {
+            return this.bytes.toByteArray();
+        }
+
+        public void reset() {
+            this.bytes.reset();
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                this.bytes.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            this.bytes.write(value);
+        }
+    }
+
+    /**
+     * Decodes each preference held in the given blob, passing it to the given consumer.
+     */
+    public static void unpack(byte[] packed, PreferenceConsumer consumer) {
+        int position = 0;
+
+        while (position < packed.length) {
+            int candidateID = 0;
+            int shift = 0;
+            byte currentByte;
+
+            do {
+                currentByte = packed[position++];
+                candidateID |= (currentByte & 0x7F) << shift;
+                shift += 7;
+            } while (currentByte < 0);
+
+            int zigzagPreference = 0;
+            shift = 0;
+
+            do {
+                currentByte = packed[position++];
+                zigzagPreference |= (currentByte & 0x7F) << shift;
+                shift += 7;
+            } while (currentByte < 0);
+
+            consumer.preference(candidateID, (zigzagPreference >>> 1) ^ -(zigzagPreference & 1));
+        }
+    }
+}
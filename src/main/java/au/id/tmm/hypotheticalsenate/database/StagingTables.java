@@ -0,0 +1,151 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.GUIMain;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Redirects the inserts of a bulk load into staging tables with the same columns as their target tables, but without
+ * any keys or indexes, so that rows can be appended without SQLite maintaining a B-tree for each of them. Once every
+ * row has been staged, {@link #copyToTargetTables()} copies each staging table into its target in the order of the
+ * target's primary key, so that the keyed table is built in a single sorted pass.
+ *
+ * @author timothy
+ */
+class StagingTables {
+
+    private static final String STAGING_TABLE_PREFIX = "Staging";
+
+    private static final Pattern INSERT_PATTERN = Pattern.compile(
+            "^\\s*INSERT(\\s+OR\\s+\\w+)?\\s+INTO\\s+(\\w+)(.*)$", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+    private final Statement statement;
+
+    /**
+     * The conflict clause of the inserts into each target table, such as {@code " OR IGNORE"}.
+     */
+    private final Map<String, String> conflictClausesByTargetTable = new LinkedHashMap<>();
+
+    StagingTables(Connection connection, Collection<AutoCloseable> resources) throws SQLException {
+        this.statement = connection.createStatement();
+        resources.add(this.statement);
+    }
+
+    /**
+     * Creates a staging table for the target table of the given insert statement, returning an equivalent insert into
+     * the staging table.
+     */
+    String stage(String insertSql) throws SQLException {
+        Matcher matcher = INSERT_PATTERN.matcher(insertSql);
+
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Unable to stage the statement " + insertSql);
+        }
+
+        String conflictClause = matcher.group(1) == null ? "" : matcher.group(1);
+        String targetTable = matcher.group(2);
+        String stagingTable = stagingTableFor(targetTable);
+
+        if (!this.conflictClausesByTargetTable.containsKey(targetTable)) {
+            this.statement.executeUpdate("DROP TABLE IF EXISTS " + stagingTable + ";");
+            this.statement.executeUpdate("CREATE TABLE " + stagingTable + " AS SELECT * FROM " + targetTable
+                    + " WHERE 0;");
+
+            this.conflictClausesByTargetTable.put(targetTable, conflictClause);
+        }
+
+        return "INSERT INTO " + stagingTable + matcher.group(3);
+    }
+
+    /**
+     * Copies the rows of each staging table into its target table in primary key order, and then drops the staging
+     * table. Any indexes on the target table are dropped during the copy and then rebuilt. Returns the number of rows
+     * inserted into the target tables, which excludes any rows dropped by a conflict clause.
+     */
+    long copyToTargetTables() throws SQLException {
+        long numRowsInserted = 0;
+
+        for (Map.Entry<String, String> targetTableAndConflictClause : this.conflictClausesByTargetTable.entrySet()) {
+            String targetTable = targetTableAndConflictClause.getKey();
+            String stagingTable = stagingTableFor(targetTable);
+
+            GUIMain.out.println("Building " + targetTable + " from the staged rows...");
+
+            List<String> indexDefinitions = this.dropIndexes(targetTable);
+            List<String> primaryKeyColumns = this.primaryKeyColumnsOf(targetTable);
+
+            // Ties are broken by the order in which rows were staged, so that a conflict clause such as OR IGNORE keeps
+            // the same row as it would have if the rows were inserted directly.
+            primaryKeyColumns.add("rowid");
+
+            numRowsInserted += this.statement.executeUpdate("INSERT" + targetTableAndConflictClause.getValue()
+                    + " INTO " + targetTable
+                    + " SELECT * FROM " + stagingTable
+                    + " ORDER BY " + String.join(", ", primaryKeyColumns) + ";");
+
+            for (String indexDefinition : indexDefinitions) {
+                this.statement.executeUpdate(indexDefinition + ";");
+            }
+
+            this.statement.executeUpdate("DROP TABLE " + stagingTable + ";");
+        }
+
+        return numRowsInserted;
+    }
+
+    /**
+     * Drops the explicitly created indexes on the given table, returning the statements needed to recreate them.
+     * Indexes created automatically for primary keys and unique constraints are left alone.
+     */
+    private List<String> dropIndexes(String table) throws SQLException {
+        List<String> indexNames = new ArrayList<>();
+        List<String> indexDefinitions = new ArrayList<>();
+
+        try (ResultSet resultSet = this.statement.executeQuery(
+                "SELECT name, sql FROM sqlite_master WHERE type = 'index' AND tbl_name = '" + table + "' " +
+                        "AND sql IS NOT NULL;")) {
+            while (resultSet.next()) {
+                indexNames.add(resultSet.getString("name"));
+                indexDefinitions.add(resultSet.getString("sql"));
+            }
+        }
+
+        for (String indexName : indexNames) {
+            this.statement.executeUpdate("DROP INDEX " + indexName + ";");
+        }
+
+        return indexDefinitions;
+    }
+
+    private List<String> primaryKeyColumnsOf(String table) throws SQLException {
+        // The pk column gives the position of each column within the primary key, or zero if it is not part of it.
+        Map<Integer, String> primaryKeyColumns = new TreeMap<>();
+
+        try (ResultSet resultSet = this.statement.executeQuery("PRAGMA table_info(" + table + ");")) {
+            while (resultSet.next()) {
+                int primaryKeyPosition = resultSet.getInt("pk");
+
+                if (primaryKeyPosition > 0) {
+                    primaryKeyColumns.put(primaryKeyPosition, resultSet.getString("name"));
+                }
+            }
+        }
+
+        return new ArrayList<>(primaryKeyColumns.values());
+    }
+
+    private static String stagingTableFor(String targetTable) {
+        return STAGING_TABLE_PREFIX + targetTable;
+    }
+}
@@ -0,0 +1,64 @@
+package au.id.tmm.hypotheticalsenate.model;
+
+import java.util.BitSet;
+
+/**
+ * A set of ballots identified by their index, holding the candidate order and intrinsic weight of each ballot along
+ * with its current state in a count. See {@link BallotStore} for a description of these properties.
+ * <p>
+ * The candidate orders and intrinsic weights of the ballots in an arena are fixed, while their count weights and
+ * current preference indices are mutated as ballots are transferred during a count.
+ *
+ * @author timothy
+ */
+public interface BallotArena {
+
+    /**
+     * The value returned by {@link #computeCurrentCandidate(int)} when a ballot has no further preferences.
+     */
+    public static final int EXHAUSTED = -1;
+
+    public int size();
+
+    /**
+     * Returns the candidate currently preferenced by the given ballot, or {@link #EXHAUSTED} if the ballot has no
+     * further preferences.
+     */
+    public int computeCurrentCandidate(int ballot);
+
+    /**
+     * Advances the current preference of the given ballot to the next candidate in its candidate order who is in the
+     * given set of continuing candidates, returning that candidate. If there is no such candidate the ballot is
+     * exhausted, and {@link #EXHAUSTED} is returned.
+     */
+    public int advanceToContinuingCandidate(int ballot, BitSet continuingCandidates);
+
+    public int getOrderLength(int ballot);
+
+    /**
+     * Returns the candidate given the preference at the given index on the given ballot.
+     */
+    public int getPreference(int ballot, int preferenceIndex);
+
+    /**
+     * Mutates the count weight of the given ballot by multiplying it by the given factor.
+     */
+    public void multiplyCurrentWeightBy(int ballot, double factor);
+
+    /**
+     * Returns the current weight of the given ballot, multiplying its intrinsic weight by its count weight.
+     */
+    public double computeCurrentWeight(int ballot);
+
+    public double getIntrinsicWeight(int ballot);
+
+    public double getCountWeight(int ballot);
+
+    public void setCountWeight(int ballot, double countWeight);
+
+    public int getCurrentPreferenceIndex(int ballot);
+
+    public void setCurrentPreferenceIndex(int ballot, int currentPreferenceIndex);
+
+    public void incrementCurrentPreferenceIndex(int ballot);
+}
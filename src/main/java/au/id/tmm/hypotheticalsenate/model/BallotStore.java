@@ -0,0 +1,272 @@
+package au.id.tmm.hypotheticalsenate.model;
+
+import au.id.tmm.hypotheticalsenate.controller.CandidateOrderBuilder;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A columnar store of ballots.
+ * <p>
+ * Rather than representing each ballot as an object, the ballots are held as a set of parallel primitive arrays, with
+ * each ballot identified by its index in the store. Each ballot has 4 properties used to represent both its
+ * preferences and its current state in a count:
+ * <ul>
+ *     <li>
+ *         An intrinsic weight, which is a weight that is never altered during the count. For a normal ballot this would
+ *         generally be {@code 1.0}, but group voting tickets are represented as a single ballot with a weight
+ *         according to the number of above-the-line votes it received.
+ *     </li>
+ *     <li>
+ *         A candidate order, which is the order of preferences associated with this ballot. Note that some processing
+ *         has already occurred to convert the surjective (ie not necessarily one-to-one) relationship between a
+ *         candidate and a preference to a preference-ordering of candidates. See {@link CandidateOrderBuilder}. The
+ *         candidate orders of all ballots are held end to end in a single array, with the start of each ballot's order
+ *         recorded in a separate array of offsets.
+ *     </li>
+ *     <li>
+ *         A count weight, which represents the current weight given to this ballot at a particular point in the count.
+ *         This will mutate as surplus votes are redistributed at a reduced rate throughout the count.
+ *     </li>
+ *     <li>
+ *         A current preference index, which represents the candidate being preferenced by this ballot at a particular
+ *         point in the count. This will mutate as the vote is redistributed throughout the count.
+ *     </li>
+ * </ul>
+ * A {@code BallotStore} grows as ballots are added to it, much like an {@link java.util.ArrayList}, and is held
+ * entirely on the heap. Unlike other {@link BallotArena}s, the intrinsic weights of its ballots can be changed, which
+ * allows ballots to be customised as they are collected.
+ * <p>
+ * A {@link #copyOnWriteView() copy-on-write view} of a store shares its candidate orders and intrinsic weights, while
+ * having its own count weights and current preference indices. The shared arrays are only copied once the view first
+ * changes them, so several differently customised counts can be run over the same ballots for little more than the
+ * cost of their count state.
+ *
+ * @author timothy
+ */
+public class BallotStore implements BallotArena {
+
+    private static final int DEFAULT_BALLOT_CAPACITY = 16;
+    private static final int DEFAULT_PREFERENCES_PER_BALLOT = 8;
+
+    private int size = 0;
+    private int numPreferences = 0;
+
+    private int[] candidateOrders;
+    private int[] orderOffsets;
+    private double[] intrinsicWeights;
+    private double[] countWeights;
+    private int[] currentPreferenceIndices;
+
+    private boolean sharedCandidateOrders = false;
+    private boolean sharedIntrinsicWeights = false;
+
+    public BallotStore(int ballotCapacity, int preferenceCapacity) {
+        this.candidateOrders = new int[Math.max(preferenceCapacity, 1)];
+        this.orderOffsets = new int[Math.max(ballotCapacity, 1) + 1];
+        this.intrinsicWeights = new double[Math.max(ballotCapacity, 1)];
+        this.countWeights = new double[Math.max(ballotCapacity, 1)];
+        this.currentPreferenceIndices = new int[Math.max(ballotCapacity, 1)];
+    }
+
+    public BallotStore(int ballotCapacity) {
+        this(ballotCapacity, ballotCapacity * DEFAULT_PREFERENCES_PER_BALLOT);
+    }
+
+    public BallotStore() {
+        this(DEFAULT_BALLOT_CAPACITY);
+    }
+
+    private BallotStore(BallotStore source) {
+        this.size = source.size;
+        this.numPreferences = source.numPreferences;
+
+        this.candidateOrders = source.candidateOrders;
+        this.orderOffsets = source.orderOffsets;
+        this.intrinsicWeights = source.intrinsicWeights;
+        this.countWeights = new double[source.countWeights.length];
+        this.currentPreferenceIndices = new int[source.currentPreferenceIndices.length];
+
+        this.sharedCandidateOrders = true;
+        this.sharedIntrinsicWeights = true;
+
+        Arrays.fill(this.countWeights, 1.0d);
+    }
+
+    /**
+     * Returns a store holding the same ballots as this one, at the start of a count, which shares the candidate orders
+     * and intrinsic weights of this store until either is changed by the view. Neither this store nor the view should
+     * have ballots added to it or its intrinsic weights changed while the other is in use, other than through the
+     * view's own methods.
+     */
+    public BallotStore copyOnWriteView() {
+        return new BallotStore(this);
+    }
+
+    /**
+     * Adds a ballot with the given intrinsic weight and the candidate order found in the given range of the given
+     * array, returning the index of the new ballot.
+     */
+    public int add(double intrinsicWeight, int[] candidateOrder, int offset, int length) {
+        this.unshareCandidateOrders();
+        this.unshareIntrinsicWeights();
+        this.ensureCapacity(this.size + 1, this.numPreferences + length);
+
+        System.arraycopy(candidateOrder, offset, this.candidateOrders, this.numPreferences, length);
+
+        return this.appendBallot(intrinsicWeight, length);
+    }
+
+    private int appendBallot(double intrinsicWeight, int orderLength) {
+        int ballot = this.size;
+
+        this.numPreferences += orderLength;
+        this.orderOffsets[ballot + 1] = this.numPreferences;
+        this.intrinsicWeights[ballot] = intrinsicWeight;
+        this.countWeights[ballot] = 1.0d;
+        this.currentPreferenceIndices[ballot] = 0;
+
+        this.size++;
+
+        return ballot;
+    }
+
+    private void ensureCapacity(int ballotCapacity, int preferenceCapacity) {
+        if (ballotCapacity > this.intrinsicWeights.length) {
+            int newCapacity = Math.max(ballotCapacity, this.intrinsicWeights.length * 2);
+
+            this.orderOffsets = Arrays.copyOf(this.orderOffsets, newCapacity + 1);
+            this.intrinsicWeights = Arrays.copyOf(this.intrinsicWeights, newCapacity);
+            this.countWeights = Arrays.copyOf(this.countWeights, newCapacity);
+            this.currentPreferenceIndices = Arrays.copyOf(this.currentPreferenceIndices, newCapacity);
+        }
+
+        if (preferenceCapacity > this.candidateOrders.length) {
+            this.candidateOrders = Arrays.copyOf(this.candidateOrders,
+                    Math.max(preferenceCapacity, this.candidateOrders.length * 2));
+        }
+    }
+
+    private void unshareCandidateOrders() {
+        if (this.sharedCandidateOrders) {
+            this.candidateOrders = this.candidateOrders.clone();
+            this.orderOffsets = this.orderOffsets.clone();
+            this.sharedCandidateOrders = false;
+        }
+    }
+
+    private void unshareIntrinsicWeights() {
+        if (this.sharedIntrinsicWeights) {
+            this.intrinsicWeights = this.intrinsicWeights.clone();
+            this.sharedIntrinsicWeights = false;
+        }
+    }
+
+    /**
+     * Releases any spare capacity held by this store. This should be called once all ballots have been added.
+     */
+    public void trimToSize() {
+        if (this.intrinsicWeights.length != this.size) {
+            this.unshareCandidateOrders();
+            this.unshareIntrinsicWeights();
+
+            this.orderOffsets = Arrays.copyOf(this.orderOffsets, this.size + 1);
+            this.intrinsicWeights = Arrays.copyOf(this.intrinsicWeights, this.size);
+            this.countWeights = Arrays.copyOf(this.countWeights, this.size);
+            this.currentPreferenceIndices = Arrays.copyOf(this.currentPreferenceIndices, this.size);
+        }
+
+        if (this.candidateOrders.length != this.numPreferences) {
+            this.unshareCandidateOrders();
+
+            this.candidateOrders = Arrays.copyOf(this.candidateOrders, this.numPreferences);
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public int computeCurrentCandidate(int ballot) {
+        int preferencePosition = this.orderOffsets[ballot] + this.currentPreferenceIndices[ballot];
+
+        if (preferencePosition >= this.orderOffsets[ballot + 1]) {
+            return EXHAUSTED;
+        } else {
+            return this.candidateOrders[preferencePosition];
+        }
+    }
+
+    @Override
+    public int advanceToContinuingCandidate(int ballot, BitSet continuingCandidates) {
+        int orderStart = this.orderOffsets[ballot];
+        int orderEnd = this.orderOffsets[ballot + 1];
+
+        int preferencePosition = orderStart + this.currentPreferenceIndices[ballot] + 1;
+
+        while (preferencePosition < orderEnd && !continuingCandidates.get(this.candidateOrders[preferencePosition])) {
+            preferencePosition++;
+        }
+
+        this.currentPreferenceIndices[ballot] = preferencePosition - orderStart;
+
+        return preferencePosition < orderEnd ? this.candidateOrders[preferencePosition] : EXHAUSTED;
+    }
+
+    @Override
+    public int getOrderLength(int ballot) {
+        return this.orderOffsets[ballot + 1] - this.orderOffsets[ballot];
+    }
+
+    @Override
+    public int getPreference(int ballot, int preferenceIndex) {
+        return this.candidateOrders[this.orderOffsets[ballot] + preferenceIndex];
+    }
+
+    @Override
+    public void multiplyCurrentWeightBy(int ballot, double factor) {
+        this.countWeights[ballot] *= factor;
+    }
+
+    @Override
+    public double computeCurrentWeight(int ballot) {
+        return this.intrinsicWeights[ballot] * this.countWeights[ballot];
+    }
+
+    @Override
+    public double getIntrinsicWeight(int ballot) {
+        return this.intrinsicWeights[ballot];
+    }
+
+    public void setIntrinsicWeight(int ballot, double intrinsicWeight) {
+        this.unshareIntrinsicWeights();
+        this.intrinsicWeights[ballot] = intrinsicWeight;
+    }
+
+    @Override
+    public double getCountWeight(int ballot) {
+        return this.countWeights[ballot];
+    }
+
+    @Override
+    public void setCountWeight(int ballot, double countWeight) {
+        this.countWeights[ballot] = countWeight;
+    }
+
+    @Override
+    public int getCurrentPreferenceIndex(int ballot) {
+        return this.currentPreferenceIndices[ballot];
+    }
+
+    @Override
+    public void setCurrentPreferenceIndex(int ballot, int currentPreferenceIndex) {
+        this.currentPreferenceIndices[ballot] = currentPreferenceIndex;
+    }
+
+    @Override
+    public void incrementCurrentPreferenceIndex(int ballot) {
+        this.currentPreferenceIndices[ballot]++;
+    }
+}
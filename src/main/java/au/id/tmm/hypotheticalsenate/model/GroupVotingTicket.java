@@ -1,20 +1,30 @@
 package au.id.tmm.hypotheticalsenate.model;
 
-import gnu.trove.map.TIntIntMap;
+import javax.annotation.Nullable;
 
 /**
+ * A group voting ticket, holding its preferences as a candidate order of candidate indices.
+ * <p>
+ * Tickets are immutable, and their candidate orders are shared between every count that uses them, so the array
+ * returned by {@link #getCandidateOrder()} must not be modified.
+ *
  * @author timothy
  */
 public class GroupVotingTicket {
 
-    private String ownerGroup;
-    private int ticketNum;
-    private TIntIntMap preferences;
+    private final String ownerGroup;
+    private final int ticketNum;
+    @Nullable
+    private final int[] candidateOrder;
 
-    public GroupVotingTicket(String ownerGroup, int ticketNum, TIntIntMap preferences) {
+    /**
+     * Creates a ticket with the given candidate order, which should be {@code null} if the ticket's preferences do
+     * not form a valid candidate order.
+     */
+    public GroupVotingTicket(String ownerGroup, int ticketNum, @Nullable int[] candidateOrder) {
         this.ownerGroup = ownerGroup;
         this.ticketNum = ticketNum;
-        this.preferences = preferences;
+        this.candidateOrder = candidateOrder;
     }
 
     public String getOwnerGroup() {
@@ -25,7 +35,12 @@ public class GroupVotingTicket {
         return ticketNum;
     }
 
-    public TIntIntMap getPreferences() {
-        return preferences;
+    public boolean isValid() {
+        return candidateOrder != null;
+    }
+
+    @Nullable
+    public int[] getCandidateOrder() {
+        return candidateOrder;
     }
 }
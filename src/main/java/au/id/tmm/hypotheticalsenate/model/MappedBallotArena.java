@@ -0,0 +1,173 @@
+package au.id.tmm.hypotheticalsenate.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * A {@link BallotArena} held off the heap in memory-mapped files, so that the ballots of many states can be held at
+ * once without a correspondingly large heap.
+ * <p>
+ * The candidate orders, order offsets and intrinsic weights are read from buffers supplied when the arena is created,
+ * which are expected to be read-only mappings of a file such as a ballot cache. The count weights and current
+ * preference indices, which change during a count, are held in a mapping of a temporary file created for the arena,
+ * which is deleted as soon as it has been mapped.
+ * <p>
+ * As each buffer is indexed by an {@code int}, an arena can hold at most {@link Integer#MAX_VALUE} preferences, and
+ * at most {@code Integer.MAX_VALUE / 8} ballots.
+ *
+ * @author timothy
+ */
+public class MappedBallotArena implements BallotArena {
+
+    private final int size;
+
+    private final IntBuffer candidateOrders;
+    private final IntBuffer orderOffsets;
+    private final DoubleBuffer intrinsicWeights;
+    private final DoubleBuffer countWeights;
+    private final IntBuffer currentPreferenceIndices;
+
+    private MappedBallotArena(int size,
+                              IntBuffer candidateOrders,
+                              IntBuffer orderOffsets,
+                              DoubleBuffer intrinsicWeights,
+                              ByteBuffer countState) {
+        this.size = size;
+        this.candidateOrders = candidateOrders;
+        this.orderOffsets = orderOffsets;
+        this.intrinsicWeights = intrinsicWeights;
+
+        countState.position(0).limit(Double.BYTES * size);
+        this.countWeights = countState.slice().asDoubleBuffer();
+
+        countState.limit(countState.capacity()).position(Double.BYTES * size);
+        this.currentPreferenceIndices = countState.slice().asIntBuffer();
+
+        for (int ballot = 0; ballot < size; ballot++) {
+            this.countWeights.put(ballot, 1.0d);
+        }
+    }
+
+    /**
+     * Creates an arena over the given buffers. The offsets must hold {@code size + 1} elements, with the candidate
+     * order of each ballot held in the candidate orders between its offset and the next. The temporary file holding
+     * the state of the count is created in the given directory.
+     */
+    public static MappedBallotArena create(int size,
+                                           IntBuffer candidateOrders,
+                                           IntBuffer orderOffsets,
+                                           DoubleBuffer intrinsicWeights,
+                                           File temporaryDirectory) throws IOException {
+        if (orderOffsets.limit() != size + 1 || intrinsicWeights.limit() != size) {
+            throw new IllegalArgumentException("Expected " + size + " ballots, but found " + intrinsicWeights.limit()
+                    + " weights and " + orderOffsets.limit() + " offsets");
+        }
+
+        File countStateFile = File.createTempFile("count", ".state", temporaryDirectory);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(countStateFile, "rw")) {
+            long countStateSize = (long) (Double.BYTES + Integer.BYTES) * size;
+            randomAccessFile.setLength(countStateSize);
+
+            // The mapping remains valid once the file is closed, and on most platforms once it has been deleted.
+            MappedByteBuffer countState = randomAccessFile.getChannel()
+                    .map(FileChannel.MapMode.READ_WRITE, 0, countStateSize);
+
+            return new MappedBallotArena(size, candidateOrders, orderOffsets, intrinsicWeights, countState);
+        } finally {
+            if (!countStateFile.delete()) {
+                countStateFile.deleteOnExit();
+            }
+        }
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public int computeCurrentCandidate(int ballot) {
+        int preferencePosition = this.orderOffsets.get(ballot) + this.currentPreferenceIndices.get(ballot);
+
+        if (preferencePosition >= this.orderOffsets.get(ballot + 1)) {
+            return EXHAUSTED;
+        } else {
+            return this.candidateOrders.get(preferencePosition);
+        }
+    }
+
+    @Override
+    public int advanceToContinuingCandidate(int ballot, BitSet continuingCandidates) {
+        int orderStart = this.orderOffsets.get(ballot);
+        int orderEnd = this.orderOffsets.get(ballot + 1);
+
+        int preferencePosition = orderStart + this.currentPreferenceIndices.get(ballot) + 1;
+
+        while (preferencePosition < orderEnd
+                && !continuingCandidates.get(this.candidateOrders.get(preferencePosition))) {
+            preferencePosition++;
+        }
+
+        this.currentPreferenceIndices.put(ballot, preferencePosition - orderStart);
+
+        return preferencePosition < orderEnd ? this.candidateOrders.get(preferencePosition) : EXHAUSTED;
+    }
+
+    @Override
+    public int getOrderLength(int ballot) {
+        return this.orderOffsets.get(ballot + 1) - this.orderOffsets.get(ballot);
+    }
+
+    @Override
+    public int getPreference(int ballot, int preferenceIndex) {
+        return this.candidateOrders.get(this.orderOffsets.get(ballot) + preferenceIndex);
+    }
+
+    @Override
+    public void multiplyCurrentWeightBy(int ballot, double factor) {
+        this.countWeights.put(ballot, this.countWeights.get(ballot) * factor);
+    }
+
+    @Override
+    public double computeCurrentWeight(int ballot) {
+        return this.intrinsicWeights.get(ballot) * this.countWeights.get(ballot);
+    }
+
+    @Override
+    public double getIntrinsicWeight(int ballot) {
+        return this.intrinsicWeights.get(ballot);
+    }
+
+    @Override
+    public double getCountWeight(int ballot) {
+        return this.countWeights.get(ballot);
+    }
+
+    @Override
+    public void setCountWeight(int ballot, double countWeight) {
+        this.countWeights.put(ballot, countWeight);
+    }
+
+    @Override
+    public int getCurrentPreferenceIndex(int ballot) {
+        return this.currentPreferenceIndices.get(ballot);
+    }
+
+    @Override
+    public void setCurrentPreferenceIndex(int ballot, int currentPreferenceIndex) {
+        this.currentPreferenceIndices.put(ballot, currentPreferenceIndex);
+    }
+
+    @Override
+    public void incrementCurrentPreferenceIndex(int ballot) {
+        this.currentPreferenceIndices.put(ballot, this.currentPreferenceIndices.get(ballot) + 1);
+    }
+}
@@ -0,0 +1,152 @@
+package au.id.tmm.hypotheticalsenate.model;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.util.Arrays;
+
+/**
+ * A representation of a set of ballots as a trie of their shared preference prefixes.
+ * <p>
+ * Each node other than the {@link #ROOT} represents a candidate preferenced by every ballot whose candidate order
+ * begins with the path from the root to that node. The weight of a node is the total weight of those ballots. Because
+ * all of the ballots beneath a node share the same preferences up to that node, they always move together during a
+ * count, and so can be transferred as a single unit of weight.
+ * <p>
+ * Like the {@link BallotStore}, the nodes are held in parallel primitive arrays and identified by their index.
+ *
+ * @author timothy
+ */
+public class PreferenceTrie {
+
+    public static final int ROOT = 0;
+
+    /**
+     * The value returned by {@link #getFirstChild(int)} and {@link #getNextSibling(int)} when there is no such node.
+     */
+    public static final int NO_NODE = -1;
+
+    private static final int NO_CANDIDATE = -1;
+
+    private int numNodes = 0;
+
+    private int[] nodeCandidates;
+    private int[] firstChildren;
+    private int[] nextSiblings;
+    private double[] nodeWeights;
+
+    private PreferenceTrie(int nodeCapacity) {
+        this.nodeCandidates = new int[nodeCapacity];
+        this.firstChildren = new int[nodeCapacity];
+        this.nextSiblings = new int[nodeCapacity];
+        this.nodeWeights = new double[nodeCapacity];
+
+        this.addNode(NO_CANDIDATE);
+    }
+
+    /**
+     * Builds a trie from the remaining preferences of each ballot in the given {@link BallotArena}. Ballots with no
+     * weight are ignored.
+     */
+    public static PreferenceTrie fromBallots(BallotArena ballots) {
+        PreferenceTrie trie = new PreferenceTrie(Math.max(ballots.size(), 16));
+
+        // Maps a parent node and a candidate to the corresponding child node. This is only needed while building.
+        TLongIntMap childLookup = new TLongIntHashMap(ballots.size());
+
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            double weight = ballots.computeCurrentWeight(ballot);
+
+            if (weight == 0d) {
+                continue;
+            }
+
+            int node = ROOT;
+            trie.nodeWeights[ROOT] += weight;
+
+            for (int i = ballots.getCurrentPreferenceIndex(ballot); i < ballots.getOrderLength(ballot); i++) {
+                int candidate = ballots.getPreference(ballot, i);
+                long childKey = (((long) node) << 32) | (candidate & 0xFFFFFFFFL);
+
+                int child;
+                if (childLookup.containsKey(childKey)) {
+                    child = childLookup.get(childKey);
+                } else {
+                    child = trie.addChild(node, candidate);
+                    childLookup.put(childKey, child);
+                }
+
+                trie.nodeWeights[child] += weight;
+                node = child;
+            }
+        }
+
+        trie.trimToSize();
+
+        return trie;
+    }
+
+    private int addChild(int parent, int candidate) {
+        int child = this.addNode(candidate);
+
+        this.nextSiblings[child] = this.firstChildren[parent];
+        this.firstChildren[parent] = child;
+
+        return child;
+    }
+
+    private int addNode(int candidate) {
+        if (this.numNodes == this.nodeCandidates.length) {
+            int newCapacity = this.numNodes * 2;
+
+            this.nodeCandidates = Arrays.copyOf(this.nodeCandidates, newCapacity);
+            this.firstChildren = Arrays.copyOf(this.firstChildren, newCapacity);
+            this.nextSiblings = Arrays.copyOf(this.nextSiblings, newCapacity);
+            this.nodeWeights = Arrays.copyOf(this.nodeWeights, newCapacity);
+        }
+
+        int node = this.numNodes;
+
+        this.nodeCandidates[node] = candidate;
+        this.firstChildren[node] = NO_NODE;
+        this.nextSiblings[node] = NO_NODE;
+        this.nodeWeights[node] = 0d;
+
+        this.numNodes++;
+
+        return node;
+    }
+
+    private void trimToSize() {
+        this.nodeCandidates = Arrays.copyOf(this.nodeCandidates, this.numNodes);
+        this.firstChildren = Arrays.copyOf(this.firstChildren, this.numNodes);
+        this.nextSiblings = Arrays.copyOf(this.nextSiblings, this.numNodes);
+        this.nodeWeights = Arrays.copyOf(this.nodeWeights, this.numNodes);
+    }
+
+    public int size() {
+        return this.numNodes;
+    }
+
+    /**
+     * Returns the candidate preferenced at the given node.
+     */
+    public int getCandidate(int node) {
+        return this.nodeCandidates[node];
+    }
+
+    public int getFirstChild(int node) {
+        return this.firstChildren[node];
+    }
+
+    public int getNextSibling(int node) {
+        return this.nextSiblings[node];
+    }
+
+    /**
+     * Returns the total weight of the ballots whose preferences pass through the given node.
+     */
+    public double getWeight(int node) {
+        return this.nodeWeights[node];
+    }
+}
@@ -3,43 +3,265 @@ package au.id.tmm.hypotheticalsenate.model;
 import gnu.trove.map.TObjectDoubleMap;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
+import java.util.Arrays;
+import java.util.List;
+
 /**
- * Essentially a wrapper around a map relating a {@link Candidate} to the number of votes they have, except that this
- * class also keeps track of the {@code Candidate}s with the least and most votes.
+ * Essentially a wrapper around an array relating the index of a {@link Candidate} to the number of votes they have,
+ * except that this class also keeps track of the {@code Candidate}s with the least and most votes. Only those
+ * candidates that have been {@link #put(int, double) put} into the tally, and not since {@link #remove(int) removed},
+ * are considered to be part of it.
+ * <p>
+ * The candidates are kept in an indexed min-heap and an indexed max-heap, so that a candidate's votes can be changed
+ * in place in {@code O(log n)} time while the candidates with the least and most votes remain available in constant
+ * time. Ties are broken in favour of the candidate with the lower index.
  *
  * @author timothy
  */
 public class VoteTally {
 
-    private TObjectDoubleMap<Candidate> votes = new TObjectDoubleHashMap<>();
-    private Candidate lowestVoteCandidate;
-    private Candidate highestVoteCandidate;
+    public static final int NO_CANDIDATE = -1;
+
+    private static final int NOT_IN_HEAP = -1;
+
+    private final double[] votes;
+
+    private int size = 0;
+
+    private final int[] minHeap;
+    private final int[] minHeapPositions;
+    private final int[] maxHeap;
+    private final int[] maxHeapPositions;
+
+    public VoteTally(int numCandidates) {
+        this.votes = new double[numCandidates];
+
+        this.minHeap = new int[numCandidates];
+        this.minHeapPositions = new int[numCandidates];
+        this.maxHeap = new int[numCandidates];
+        this.maxHeapPositions = new int[numCandidates];
+
+        Arrays.fill(this.minHeapPositions, NOT_IN_HEAP);
+        Arrays.fill(this.maxHeapPositions, NOT_IN_HEAP);
+    }
+
+    /**
+     * Sets the number of votes held by the given candidate, adding them to the tally if necessary.
+     */
+    public void put(int candidate, double votes) {
+        if (!this.contains(candidate)) {
+            this.votes[candidate] = votes;
+
+            this.minHeap[this.size] = candidate;
+            this.minHeapPositions[candidate] = this.size;
+            this.maxHeap[this.size] = candidate;
+            this.maxHeapPositions[candidate] = this.size;
+
+            this.size++;
+
+            this.siftUp(this.minHeap, this.minHeapPositions, this.size - 1, false);
+            this.siftUp(this.maxHeap, this.maxHeapPositions, this.size - 1, true);
+        } else {
+            double oldVotes = this.votes[candidate];
+            this.votes[candidate] = votes;
+
+            if (votes < oldVotes) {
+                this.siftUp(this.minHeap, this.minHeapPositions, this.minHeapPositions[candidate], false);
+                this.siftDown(this.maxHeap, this.maxHeapPositions, this.maxHeapPositions[candidate], true);
+            } else if (votes > oldVotes) {
+                this.siftDown(this.minHeap, this.minHeapPositions, this.minHeapPositions[candidate], false);
+                this.siftUp(this.maxHeap, this.maxHeapPositions, this.maxHeapPositions[candidate], true);
+            }
+        }
+    }
+
+    /**
+     * Adds the given number of votes, which may be negative, to those held by the given candidate.
+     */
+    public void adjust(int candidate, double votesDelta) {
+        this.put(candidate, this.get(candidate) + votesDelta);
+    }
+
+    /**
+     * Removes the given candidate from the tally, returning the number of votes they held.
+     */
+    public double remove(int candidate) {
+        if (!this.contains(candidate)) {
+            return 0d;
+        }
+
+        double removedVotes = this.votes[candidate];
+
+        this.removeFromHeap(this.minHeap, this.minHeapPositions, candidate, false);
+        this.removeFromHeap(this.maxHeap, this.maxHeapPositions, candidate, true);
+
+        this.size--;
+        this.votes[candidate] = 0d;
+
+        return removedVotes;
+    }
+
+    public boolean contains(int candidate) {
+        return this.minHeapPositions[candidate] != NOT_IN_HEAP;
+    }
+
+    public double get(int candidate) {
+        return votes[candidate];
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int getLowestVoteCandidate() {
+        return this.size == 0 ? NO_CANDIDATE : this.minHeap[0];
+    }
+
+    public int getHighestVoteCandidate() {
+        return this.size == 0 ? NO_CANDIDATE : this.maxHeap[0];
+    }
+
+    /**
+     * Returns the candidates in the tally with strictly fewer than the given number of votes, ordered from the fewest
+     * votes to the most.
+     */
+    public int[] candidatesBelow(double votes) {
+        int[] candidatesBelow = new int[this.size];
+        int numCandidatesBelow = 0;
 
-    public void put(Candidate candidate, double votes) {
-        this.votes.put(candidate, votes);
+        // Every candidate beneath a heap node has at least as many votes as that node, so we only need to descend
+        // through the nodes that are themselves below the threshold.
+        int[] nodesToVisit = new int[this.size];
+        int numNodesToVisit = 0;
 
-        if (this.lowestVoteCandidate == null || votes < this.votes.get(lowestVoteCandidate)) {
-            this.lowestVoteCandidate = candidate;
+        if (this.size > 0) {
+            nodesToVisit[numNodesToVisit++] = 0;
         }
 
-        if (this.highestVoteCandidate == null || votes > this.votes.get(highestVoteCandidate)) {
-            this.highestVoteCandidate = candidate;
+        while (numNodesToVisit > 0) {
+            int node = nodesToVisit[--numNodesToVisit];
+            int candidate = this.minHeap[node];
+
+            if (this.votes[candidate] < votes) {
+                candidatesBelow[numCandidatesBelow++] = candidate;
+
+                for (int child = 2 * node + 1; child <= 2 * node + 2 && child < this.size; child++) {
+                    nodesToVisit[numNodesToVisit++] = child;
+                }
+            }
+        }
+
+        // Insertion sort, as there are rarely more than a few dozen candidates.
+        for (int i = 1; i < numCandidatesBelow; i++) {
+            int candidate = candidatesBelow[i];
+            int j = i - 1;
+
+            while (j >= 0 && this.precedes(candidate, candidatesBelow[j], false)) {
+                candidatesBelow[j + 1] = candidatesBelow[j];
+                j--;
+            }
+
+            candidatesBelow[j + 1] = candidate;
+        }
+
+        return Arrays.copyOf(candidatesBelow, numCandidatesBelow);
+    }
+
+    /**
+     * Resolves the candidate indices in this tally against the given list of candidates, returning a map from each
+     * candidate to their number of votes.
+     */
+    public TObjectDoubleMap<Candidate> toCandidateMap(List<Candidate> candidateList) {
+        TObjectDoubleMap<Candidate> candidateVotes = new TObjectDoubleHashMap<>(this.size);
+
+        for (int i = 0; i < this.size; i++) {
+            int candidate = this.minHeap[i];
+            candidateVotes.put(candidateList.get(candidate), this.votes[candidate]);
+        }
+
+        return candidateVotes;
+    }
+
+    /**
+     * Returns true if the first candidate should be closer to the root of the heap than the second. In the min-heap,
+     * this is the candidate with fewer votes, and in the max-heap, the candidate with more votes. Ties are broken by
+     * the candidate index.
+     */
+    private boolean precedes(int candidate1, int candidate2, boolean maxHeap) {
+        double votes1 = this.votes[candidate1];
+        double votes2 = this.votes[candidate2];
+
+        if (votes1 != votes2) {
+            return maxHeap ? votes1 > votes2 : votes1 < votes2;
+        } else {
+            return candidate1 < candidate2;
         }
     }
 
-    public double get(Candidate candidate) {
-        return votes.get(candidate);
+    private void removeFromHeap(int[] heap, int[] positions, int candidate, boolean maxHeap) {
+        int position = positions[candidate];
+        int last = this.size - 1;
+
+        positions[candidate] = NOT_IN_HEAP;
+
+        if (position != last) {
+            int movedCandidate = heap[last];
+            heap[position] = movedCandidate;
+            positions[movedCandidate] = position;
+
+            // The moved candidate may belong either above or below its new position, but only one of these will
+            // actually move it. The heap is temporarily one element too large while we do so.
+            this.siftDown(heap, positions, position, maxHeap, last);
+            this.siftUp(heap, positions, positions[movedCandidate], maxHeap);
+        }
     }
 
-    public TObjectDoubleMap<Candidate> getVotes() {
-        return votes;
+    private void siftUp(int[] heap, int[] positions, int position, boolean maxHeap) {
+        int candidate = heap[position];
+
+        while (position > 0) {
+            int parentPosition = (position - 1) / 2;
+            int parent = heap[parentPosition];
+
+            if (!this.precedes(candidate, parent, maxHeap)) {
+                break;
+            }
+
+            heap[position] = parent;
+            positions[parent] = position;
+            position = parentPosition;
+        }
+
+        heap[position] = candidate;
+        positions[candidate] = position;
     }
 
-    public Candidate getLowestVoteCandidate() {
-        return lowestVoteCandidate;
+    private void siftDown(int[] heap, int[] positions, int position, boolean maxHeap) {
+        this.siftDown(heap, positions, position, maxHeap, this.size);
     }
 
-    public Candidate getHighestVoteCandidate() {
-        return highestVoteCandidate;
+    private void siftDown(int[] heap, int[] positions, int position, boolean maxHeap, int heapSize) {
+        int candidate = heap[position];
+
+        while (2 * position + 1 < heapSize) {
+            int childPosition = 2 * position + 1;
+
+            if (childPosition + 1 < heapSize && this.precedes(heap[childPosition + 1], heap[childPosition], maxHeap)) {
+                childPosition++;
+            }
+
+            int child = heap[childPosition];
+
+            if (!this.precedes(child, candidate, maxHeap)) {
+                break;
+            }
+
+            heap[position] = child;
+            positions[child] = position;
+            position = childPosition;
+        }
+
+        heap[position] = candidate;
+        positions[candidate] = position;
     }
 }
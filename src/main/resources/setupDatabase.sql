@@ -47,12 +47,12 @@ CREATE TABLE GroupTicketPreference(
   ticket INTEGER,
   preference INTEGER,
   preferencedCandidate INTEGER,
-  PRIMARY KEY (stateCode, ownerGroup, ticket, preference),
+  PRIMARY KEY (electionID, stateCode, ownerGroup, ticket, preference),
   FOREIGN KEY (stateCode) REFERENCES State (stateCode),
   FOREIGN KEY (ownerGroup) REFERENCES GroupTicketInfo (groupID),
   FOREIGN KEY (preferencedCandidate) REFERENCES Candidate (candidateID),
   FOREIGN KEY (electionID) REFERENCES Election (electionID)
-);
+) WITHOUT ROWID;
 
 CREATE TABLE BelowTheLineBallot(
   electionID INTEGER,
@@ -62,19 +62,29 @@ CREATE TABLE BelowTheLineBallot(
   paper INTEGER,
   candidateID INTEGER,
   preference INTEGER,
-  PRIMARY KEY (stateCode, ballotID, candidateID),
+  PRIMARY KEY (electionID, stateCode, ballotID, candidateID),
   FOREIGN KEY (stateCode) REFERENCES State (stateCode),
   FOREIGN KEY (candidateID) REFERENCES Candidate (candidateID),
   FOREIGN KEY (electionID) REFERENCES Election (electionID)
-);
+) WITHOUT ROWID;
+
+CREATE TABLE PackedBelowTheLineBallot(
+  electionID INTEGER,
+  stateCode TEXT(3),
+  ballotID INTEGER,
+  preferences BLOB,
+  PRIMARY KEY (electionID, stateCode, ballotID),
+  FOREIGN KEY (stateCode) REFERENCES State (stateCode),
+  FOREIGN KEY (electionID) REFERENCES Election (electionID)
+) WITHOUT ROWID;
 
 CREATE TABLE AboveTheLineVotes(
   electionID INTEGER,
   stateCode TEXT(3),
   groupID TEXT(5),
   votes INTEGER,
-  PRIMARY KEY (stateCode, groupID),
+  PRIMARY KEY (electionID, stateCode, groupID),
   FOREIGN KEY (stateCode) REFERENCES State (stateCode),
   FOREIGN KEY (groupID) REFERENCES GroupTicketInfo (groupID),
   FOREIGN KEY (electionID) REFERENCES Election (electionID)
-)
\ No newline at end of file
+) WITHOUT ROWID
\ No newline at end of file
@@ -0,0 +1,18 @@
+CREATE TABLE IF NOT EXISTS PackedBelowTheLineBallot(
+  electionID INTEGER,
+  stateCode TEXT(3),
+  ballotID INTEGER,
+  preferences BLOB,
+  PRIMARY KEY (electionID, stateCode, ballotID),
+  FOREIGN KEY (stateCode) REFERENCES State (stateCode),
+  FOREIGN KEY (electionID) REFERENCES Election (electionID)
+) WITHOUT ROWID;
+
+CREATE INDEX IF NOT EXISTS GroupTicketPreferenceByElectionAndState
+  ON GroupTicketPreference (electionID, stateCode, ownerGroup, ticket, preference, preferencedCandidate);
+
+CREATE INDEX IF NOT EXISTS BelowTheLineBallotByElectionAndState
+  ON BelowTheLineBallot (electionID, stateCode, ballotID, candidateID, preference);
+
+CREATE INDEX IF NOT EXISTS AboveTheLineVotesByElectionAndState
+  ON AboveTheLineVotes (electionID, stateCode, groupID, votes)
\ No newline at end of file
@@ -0,0 +1,111 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * @author timothy
+ */
+public class BallotBundlerTest {
+
+    @Test
+    public void mergesIdenticalOrdersAndSumsWeights() {
+        BallotStore ballots = new BallotStore();
+        BallotBundler bundler = new BallotBundler(ballots);
+
+        int first = bundler.add(1d, new int[] {2, 0, 1}, 3);
+        int second = bundler.add(1d, new int[] {0, 1, 2}, 3);
+        assertEquals(first, bundler.add(2.5d, new int[] {2, 0, 1}, 3));
+        assertEquals(first, bundler.add(1d, new int[] {2, 0, 1}, 3));
+
+        assertEquals(2, ballots.size());
+        assertEquals(4.5d, ballots.getIntrinsicWeight(first), 0d);
+        assertEquals(1d, ballots.getIntrinsicWeight(second), 0d);
+        assertEquals(4, bundler.getNumBallots());
+        assertEquals(2, bundler.getNumBundles());
+        assertEquals(2d, bundler.computeCompressionRatio(), 0d);
+    }
+
+    @Test
+    public void onlyComparesGivenLengthOfOrder() {
+        BallotStore ballots = new BallotStore();
+        BallotBundler bundler = new BallotBundler(ballots);
+
+        int prefix = bundler.add(1d, new int[] {3, 1, 4}, 2);
+        int whole = bundler.add(1d, new int[] {3, 1, 4}, 3);
+
+        // The elements past the given length are ignored, so a reused buffer can hold stale preferences.
+        assertEquals(prefix, bundler.add(1d, new int[] {3, 1, 5}, 2));
+        assertNotEquals(prefix, whole);
+        assertEquals(2, ballots.getOrderLength(prefix));
+        assertEquals(2d, ballots.getIntrinsicWeight(prefix), 0d);
+    }
+
+    @Test
+    public void keepsOrdersWithCollidingHashesApart() {
+        BallotStore ballots = new BallotStore();
+        BallotBundler bundler = new BallotBundler(ballots);
+
+        // Both orders hash to 31 * 32 before their bits are spread.
+        int first = bundler.add(1d, new int[] {0, 31}, 2);
+        int second = bundler.add(1d, new int[] {1, 0}, 2);
+
+        assertNotEquals(first, second);
+        assertEquals(first, bundler.add(1d, new int[] {0, 31}, 2));
+        assertEquals(second, bundler.add(1d, new int[] {1, 0}, 2));
+        assertEquals(2d, ballots.getIntrinsicWeight(first), 0d);
+        assertEquals(2d, ballots.getIntrinsicWeight(second), 0d);
+    }
+
+    @Test
+    public void bundlesLikeMapOfOrdersAfterStoreAlreadyHasBallots() {
+        BallotStore ballots = new BallotStore();
+        // Above the line ballots come first, and are never bundled with the below the line ballots.
+        ballots.add(100d, new int[] {0, 1}, 0, 2);
+
+        BallotBundler bundler = new BallotBundler(ballots);
+        Map<List<Integer>, Double> expectedWeights = new HashMap<>();
+        Random random = new Random(13);
+
+        // Enough distinct orders that the table must grow several times.
+        for (int ballot = 0; ballot < 20000; ballot++) {
+            int[] candidateOrder = new int[1 + random.nextInt(4)];
+
+            for (int preferenceIndex = 0; preferenceIndex < candidateOrder.length; preferenceIndex++) {
+                candidateOrder[preferenceIndex] = random.nextInt(12);
+            }
+
+            bundler.add(1d, candidateOrder, candidateOrder.length);
+            expectedWeights.merge(toList(candidateOrder), 1d, Double::sum);
+        }
+
+        assertEquals(20000, bundler.getNumBallots());
+        assertEquals(expectedWeights.size(), bundler.getNumBundles());
+        assertEquals(expectedWeights.size() + 1, ballots.size());
+        assertEquals(100d, ballots.getIntrinsicWeight(0), 0d);
+
+        for (int ballot = 1; ballot < ballots.size(); ballot++) {
+            int[] candidateOrder = new int[ballots.getOrderLength(ballot)];
+
+            for (int preferenceIndex = 0; preferenceIndex < candidateOrder.length; preferenceIndex++) {
+                candidateOrder[preferenceIndex] = ballots.getPreference(ballot, preferenceIndex);
+            }
+
+            assertEquals(Arrays.toString(candidateOrder),
+                    expectedWeights.get(toList(candidateOrder)), ballots.getIntrinsicWeight(ballot), 0d);
+        }
+    }
+
+    private static List<Integer> toList(int[] candidateOrder) {
+        return Arrays.asList(Arrays.stream(candidateOrder).boxed().toArray(Integer[]::new));
+    }
+}
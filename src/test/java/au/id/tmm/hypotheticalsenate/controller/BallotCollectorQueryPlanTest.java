@@ -0,0 +1,96 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the queries made while loading the ballots of a state are served by the primary key of the table they
+ * read, so that loading other elections and states does not slow them down.
+ *
+ * @author timothy
+ */
+public class BallotCollectorQueryPlanTest {
+
+    private static final String CREATE_TABLES_SCRIPT_LOCATION = "/setupDatabase.sql";
+
+    private Connection connection;
+
+    @Before
+    public void createTables() throws SQLException, IOException {
+        this.connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+
+        try (Statement statement = this.connection.createStatement()) {
+            statement.executeUpdate(IOUtils.toString(
+                    BallotCollectorQueryPlanTest.class.getResourceAsStream(CREATE_TABLES_SCRIPT_LOCATION)));
+        }
+    }
+
+    @After
+    public void closeConnection() throws SQLException {
+        this.connection.close();
+    }
+
+    @Test
+    public void stateQueriesSearchPrimaryKeyByElectionAndState() throws SQLException {
+        for (String query : BallotCollector.COUNT_STATE_QUERIES) {
+            List<String> plan = this.explainQueryPlan(query, "TAS", 1);
+
+            assertEquals("Plan of query: " + query, 1, plan.size());
+
+            String detail = plan.get(0);
+
+            assertTrue("Plan of query: " + query + " was: " + detail,
+                    detail.startsWith("SEARCH") && detail.endsWith("USING PRIMARY KEY (electionID=? AND stateCode=?)"));
+        }
+    }
+
+    @Test
+    public void candidatesQuerySearchesByElection() throws SQLException {
+        List<String> plan = this.explainQueryPlan(BallotCollector.CANDIDATES_QUERY, 1, "TAS", 1);
+
+        assertFalse(plan.isEmpty());
+
+        for (String detail : plan) {
+            assertFalse("Plan of candidates query: " + detail,
+                    detail.startsWith("SCAN") || detail.contains("TEMP B-TREE"));
+
+            if (detail.startsWith("SEARCH")) {
+                assertTrue("Plan of candidates query: " + detail, detail.contains("(electionID=?"));
+            }
+        }
+    }
+
+    private List<String> explainQueryPlan(String query, Object... params) throws SQLException {
+        List<String> plan = new ArrayList<>();
+
+        try (PreparedStatement statement = this.connection.prepareStatement("EXPLAIN QUERY PLAN " + query)) {
+            for (int paramIndex = 0; paramIndex < params.length; paramIndex++) {
+                statement.setObject(paramIndex + 1, params[paramIndex]);
+            }
+
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    plan.add(resultSet.getString("detail"));
+                }
+            }
+        }
+
+        return plan;
+    }
+}
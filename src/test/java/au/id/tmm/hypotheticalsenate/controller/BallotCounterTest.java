@@ -0,0 +1,182 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+import au.id.tmm.hypotheticalsenate.model.Result;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author timothy
+ */
+public class BallotCounterTest {
+
+    @Test
+    public void runningTalliesMatchRecountThroughoutCount() {
+        List<Candidate> candidates = GeneratedBallots.candidates(20);
+        BallotStore ballots = GeneratedBallots.ballots(5, 50000, 20);
+
+        BallotCounter ballotCounter = new BallotCounter(6, candidates, ballots);
+        ballotCounter.setVerifyTallies(true);
+        Result result = ballotCounter.run();
+
+        assertEquals(6, result.getElectedCandidates().size());
+    }
+
+    @Test
+    public void verifyTalliesCatchesDriftedTally() {
+        try {
+            countWithDriftedTally(true);
+            fail("The drifted tally was not detected");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("does not match the recounted tally"));
+        }
+    }
+
+    @Test
+    public void driftedTallyIsNotCheckedUnlessVerifying() {
+        assertEquals(1, countWithDriftedTally(false).getElectedCandidates().size());
+    }
+
+    /**
+     * Counts three candidates' ballots, where the weight of the second candidate's ballot is halved behind the
+     * counter's back as the third candidate's ballot is transferred, so that their running tally no longer matches a
+     * recount of their ballots.
+     */
+    private static Result countWithDriftedTally(boolean verifyTallies) {
+        int driftedBallot = 1;
+
+        BallotStore ballots = new BallotStore() {
+            private boolean drifted = false;
+
+            @Override
+            public int advanceToContinuingCandidate(int ballot, BitSet continuingCandidates) {
+                if (!this.drifted) {
+                    this.drifted = true;
+                    this.multiplyCurrentWeightBy(driftedBallot, 0.5d);
+                }
+
+                return super.advanceToContinuingCandidate(ballot, continuingCandidates);
+            }
+        };
+
+        ballots.add(10d, new int[] {0, 1, 2}, 0, 3);
+        ballots.add(8d, new int[] {1, 0, 2}, 0, 3);
+        ballots.add(3d, new int[] {2, 0, 1}, 0, 3);
+
+        BallotCounter ballotCounter = new BallotCounter(1, GeneratedBallots.candidates(3), ballots);
+        ballotCounter.setVerifyTallies(verifyTallies);
+
+        return ballotCounter.run();
+    }
+
+    @Test
+    public void bulkExclusionExcludesLargestGroupThatCannotOvertakeNextCandidate() {
+        // Candidates 5, 4 and 3 hold 9 votes between them, fewer than the 30 of candidate 2. Adding candidate 2 gives
+        // 39, which is not fewer than the 35 of candidate 1. No candidate exceeds the quota of 38.
+        List<Candidate> candidates = GeneratedBallots.candidates(6);
+        Result result = countWithBulkExclusion(2, candidates, 38, 35, 30, 5, 3, 1);
+
+        assertEquals(candidatesAt(candidates, 5, 4, 3), result.getCountSteps().get(1).getCandidatesExcluded());
+    }
+
+    @Test
+    public void bulkExclusionLooksPastGroupsThatCouldOvertake() {
+        // Candidates 4 and 5 tie on 1 vote, so the lower of them alone could draw level with the other. Together with
+        // candidate 3 they hold 5 votes, fewer than the 30 of candidate 2. The quota is 36.
+        List<Candidate> candidates = GeneratedBallots.candidates(6);
+        Result result = countWithBulkExclusion(2, candidates, 36, 35, 30, 3, 1, 1);
+
+        assertEquals(candidatesAt(candidates, 4, 5, 3), result.getCountSteps().get(1).getCandidatesExcluded());
+    }
+
+    @Test
+    public void bulkExclusionRequiresStrictlyFewerVotes() {
+        // Each group of the lowest candidates holds exactly as many votes as the next candidate, so only the lowest is
+        // excluded. The quota is 43.
+        List<Candidate> candidates = GeneratedBallots.candidates(8);
+        Result result = countWithBulkExclusion(2, candidates, 32, 32, 32, 16, 8, 4, 3, 1);
+
+        assertEquals(candidatesAt(candidates, 7), result.getCountSteps().get(1).getCandidatesExcluded());
+    }
+
+    @Test
+    public void bulkExclusionOnlyExcludesCandidatesWhoCannotOvertake() {
+        // With a single vacancy no candidate reaches the quota early, so the trailing candidates are excluded while
+        // their support still declines steeply.
+        List<Candidate> candidates = GeneratedBallots.candidates(12);
+        BallotStore ballots = GeneratedBallots.ballotsWithDecliningSupport(3, 12, 5000, 0.6);
+
+        BallotCounter ballotCounter = new BallotCounter(1, candidates, ballots);
+        ballotCounter.setBulkExclusion(true);
+        Result result = ballotCounter.run();
+
+        List<CountStep> steps = result.getCountSteps();
+        boolean excludedSeveral = false;
+
+        for (int step = 1; step < steps.size(); step++) {
+            List<Candidate> excluded = steps.get(step).getCandidatesExcluded();
+
+            if (excluded.size() > 1) {
+                excludedSeveral = true;
+
+                double combinedVotes = 0d;
+                for (Candidate candidate : excluded) {
+                    combinedVotes += steps.get(step - 1).getVotes().get(candidate);
+                }
+
+                for (Candidate candidate : steps.get(step - 1).getVotes().keySet()) {
+                    if (!excluded.contains(candidate)) {
+                        assertTrue("Candidates excluded at step " + step + " could overtake " + candidate,
+                                combinedVotes < steps.get(step - 1).getVotes().get(candidate));
+                    }
+                }
+            }
+        }
+
+        assertTrue(excludedSeveral);
+        assertEquals(1, result.getElectedCandidates().size());
+    }
+
+    /**
+     * Counts a ballot for each candidate, with the given weight as its first preference votes, and every later
+     * preference going to the candidates in order.
+     */
+    private static Result countWithBulkExclusion(int vacancies, List<Candidate> candidates, double... votes) {
+        BallotStore ballots = new BallotStore();
+
+        for (int candidate = 0; candidate < votes.length; candidate++) {
+            int[] candidateOrder = new int[candidates.size()];
+            candidateOrder[0] = candidate;
+
+            for (int preference = 1, other = 0; preference < candidateOrder.length; preference++, other++) {
+                candidateOrder[preference] = other == candidate ? ++other : other;
+            }
+
+            ballots.add(votes[candidate], candidateOrder, 0, candidateOrder.length);
+        }
+
+        BallotCounter ballotCounter = new BallotCounter(vacancies, candidates, ballots);
+        ballotCounter.setBulkExclusion(true);
+        ballotCounter.setVerifyTallies(true);
+
+        return ballotCounter.run();
+    }
+
+    private static List<Candidate> candidatesAt(List<Candidate> candidates, int... indices) {
+        List<Candidate> candidatesAt = new ArrayList<>(indices.length);
+
+        for (int index : indices) {
+            candidatesAt.add(candidates.get(index));
+        }
+
+        return candidatesAt;
+    }
+}
@@ -0,0 +1,181 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * @author timothy
+ */
+public class CandidateOrderBuilderTest {
+
+    private static final int NUM_CANDIDATES = 40;
+
+    @Test
+    public void ordersCandidatesByPreference() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(7, 3);
+        builder.put(2, 1);
+        builder.put(5, 2);
+
+        int length = builder.build();
+
+        assertEquals(3, length);
+        assertArrayEquals(new int[] {2, 5, 7}, Arrays.copyOf(builder.getCandidateOrder(), length));
+    }
+
+    @Test
+    public void rejectsDuplicatedPreference() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(0, 1);
+        builder.put(1, 2);
+        builder.put(2, 2);
+
+        assertEquals(-1, builder.build());
+    }
+
+    @Test
+    public void rejectsPreferenceGreaterThanNumberOfCandidates() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(0, 1);
+        builder.put(1, NUM_CANDIDATES + 1);
+
+        assertEquals(-1, builder.build());
+    }
+
+    @Test
+    public void acceptsPreferenceEqualToNumberOfCandidates() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(3, NUM_CANDIDATES);
+
+        assertEquals(1, builder.build());
+        assertEquals(3, builder.getCandidateOrder()[0]);
+    }
+
+    @Test
+    public void ignoresNegativePreference() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(0, 1);
+        builder.put(1, -1);
+
+        assertEquals(1, builder.build());
+        assertEquals(0, builder.getCandidateOrder()[0]);
+    }
+
+    @Test
+    public void acceptsDuplicatedNegativePreference() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(0, 2);
+        builder.put(1, -1);
+        builder.put(2, -1);
+        builder.put(3, 1);
+
+        int length = builder.build();
+
+        assertEquals(2, length);
+        assertArrayEquals(new int[] {3, 0}, Arrays.copyOf(builder.getCandidateOrder(), length));
+    }
+
+    @Test
+    public void resetClearsInvalidBallot() {
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        builder.put(0, 1);
+        builder.put(1, 1);
+        assertEquals(-1, builder.build());
+
+        builder.reset();
+        builder.put(1, 1);
+
+        assertEquals(1, builder.build());
+        assertEquals(1, builder.getCandidateOrder()[0]);
+    }
+
+    @Test
+    public void reusesBuffersWithoutAllocatingPerBallot() {
+        // Allocations can only be measured through the HotSpot extension of the thread MX bean.
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported() && threadMXBean.isThreadAllocatedMemoryEnabled());
+
+        long threadID = Thread.currentThread().getId();
+
+        int[][] candidateOrders = randomCandidateOrders(1000);
+        CandidateOrderBuilder builder = new CandidateOrderBuilder(NUM_CANDIDATES);
+
+        // Warm up, so that the loop is compiled before it is measured.
+        long checksum = buildAll(builder, candidateOrders, 20);
+        int[] candidateOrderBuffer = builder.getCandidateOrder();
+
+        long allocatedBefore = threadMXBean.getThreadAllocatedBytes(threadID);
+        checksum += buildAll(builder, candidateOrders, 100);
+        long allocatedAfter = threadMXBean.getThreadAllocatedBytes(threadID);
+
+        assertSame(candidateOrderBuffer, builder.getCandidateOrder());
+        assertTrue(checksum != 0);
+
+        // A single allocation per ballot would account for well over a megabyte across the 100,000 builds.
+        long allocatedBytes = allocatedAfter - allocatedBefore;
+        assertTrue("Allocated " + allocatedBytes + " bytes while building candidate orders",
+                allocatedBytes < 16 * 1024);
+    }
+
+    private static long buildAll(CandidateOrderBuilder builder, int[][] candidateOrders, int repetitions) {
+        long checksum = 0;
+
+        for (int repetition = 0; repetition < repetitions; repetition++) {
+            for (int[] candidateOrder : candidateOrders) {
+                builder.reset();
+
+                for (int preferenceIndex = 0; preferenceIndex < candidateOrder.length; preferenceIndex++) {
+                    builder.put(candidateOrder[preferenceIndex], preferenceIndex + 1);
+                }
+
+                int length = builder.build();
+                checksum += length + builder.getCandidateOrder()[length - 1];
+            }
+        }
+
+        return checksum;
+    }
+
+    private static int[][] randomCandidateOrders(int numBallots) {
+        Random random = new Random(42);
+        int[][] candidateOrders = new int[numBallots][];
+
+        for (int ballot = 0; ballot < numBallots; ballot++) {
+            int[] candidates = new int[NUM_CANDIDATES];
+
+            for (int candidate = 0; candidate < NUM_CANDIDATES; candidate++) {
+                candidates[candidate] = candidate;
+            }
+
+            for (int i = NUM_CANDIDATES - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = candidates[i];
+                candidates[i] = candidates[j];
+                candidates[j] = swap;
+            }
+
+            candidateOrders[ballot] = Arrays.copyOf(candidates, 1 + random.nextInt(NUM_CANDIDATES));
+        }
+
+        return candidateOrders;
+    }
+}
@@ -0,0 +1,52 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Assertions comparing the {@link CountStep}s of two counts of the same ballots.
+ *
+ * @author timothy
+ */
+final class CountStepAssertions {
+
+    private CountStepAssertions() {
+    }
+
+    /**
+     * Asserts that the given count steps elect and exclude the same candidates and give each candidate exactly the
+     * same votes.
+     */
+    static void assertCountStepsEqual(List<CountStep> expectedSteps, List<CountStep> actualSteps) {
+        assertCountStepsEqual(expectedSteps, actualSteps, 0d);
+    }
+
+    /**
+     * Asserts that the given count steps elect and exclude the same candidates, and give each candidate the same votes
+     * to within the given tolerance relative to their votes.
+     */
+    static void assertCountStepsEqual(List<CountStep> expectedSteps,
+                                      List<CountStep> actualSteps,
+                                      double relativeTolerance) {
+        assertEquals(expectedSteps.size(), actualSteps.size());
+
+        for (int step = 0; step < expectedSteps.size(); step++) {
+            CountStep expected = expectedSteps.get(step);
+            CountStep actual = actualSteps.get(step);
+
+            assertEquals("Elected at step " + step, expected.getCandidatesElected(), actual.getCandidatesElected());
+            assertEquals("Excluded at step " + step, expected.getCandidatesExcluded(), actual.getCandidatesExcluded());
+            assertEquals("Candidates at step " + step, expected.getVotes().keySet(), actual.getVotes().keySet());
+
+            for (Candidate candidate : expected.getVotes().keySet()) {
+                double expectedVotes = expected.getVotes().get(candidate);
+
+                assertEquals("Votes for " + candidate + " at step " + step,
+                        expectedVotes, actual.getVotes().get(candidate), relativeTolerance * Math.abs(expectedVotes));
+            }
+        }
+    }
+}
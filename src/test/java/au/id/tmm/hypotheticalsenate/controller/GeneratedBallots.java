@@ -0,0 +1,107 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates candidates and ballots for tests of the counting engine. The ballots are generated from a seed, so that
+ * counts being compared can be given identical ballots.
+ * <p>
+ * First preferences are skewed towards the lower numbered candidates, so that the leading candidates hold large piles
+ * and are elected with a surplus, and one in every thousand ballots has a large intrinsic weight, in the manner of a
+ * group voting ticket.
+ *
+ * @author timothy
+ */
+final class GeneratedBallots {
+
+    private static final int TICKET_FREQUENCY = 1000;
+    private static final int MAX_TICKET_WEIGHT = 500;
+
+    private GeneratedBallots() {
+    }
+
+    static List<Candidate> candidates(int numCandidates) {
+        List<Candidate> candidates = new ArrayList<>(numCandidates);
+
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            candidates.add(new Candidate(candidate, "Given" + candidate, "Surname" + candidate, "P" + candidate));
+        }
+
+        return candidates;
+    }
+
+    static BallotStore ballots(long seed, int numBallots, int numCandidates) {
+        Random random = new Random(seed);
+        BallotStore ballots = new BallotStore(numBallots);
+        int[] candidateOrder = new int[numCandidates];
+
+        for (int ballot = 0; ballot < numBallots; ballot++) {
+            int firstPreference = (int) (numCandidates * Math.pow(random.nextDouble(), 3));
+            double intrinsicWeight = ballot % TICKET_FREQUENCY == 0 ? 1 + random.nextInt(MAX_TICKET_WEIGHT) : 1d;
+
+            addBallot(ballots, random, candidateOrder, firstPreference, intrinsicWeight);
+        }
+
+        ballots.trimToSize();
+
+        return ballots;
+    }
+
+    /**
+     * Generates ballots whose first preferences decline geometrically from one candidate to the next, by the given
+     * factor, so that the trailing candidates together hold fewer votes than the candidates ahead of them.
+     */
+    static BallotStore ballotsWithDecliningSupport(long seed,
+                                                   int numCandidates,
+                                                   int firstCandidateBallots,
+                                                   double decline) {
+        Random random = new Random(seed);
+        BallotStore ballots = new BallotStore();
+        int[] candidateOrder = new int[numCandidates];
+
+        for (int firstPreference = 0; firstPreference < numCandidates; firstPreference++) {
+            int numBallots = (int) Math.ceil(firstCandidateBallots * Math.pow(decline, firstPreference));
+
+            for (int ballot = 0; ballot < numBallots; ballot++) {
+                addBallot(ballots, random, candidateOrder, firstPreference, 1d);
+            }
+        }
+
+        ballots.trimToSize();
+
+        return ballots;
+    }
+
+    /**
+     * Adds a ballot with the given first preference, followed by a random order of a random number of the other
+     * candidates.
+     */
+    private static void addBallot(BallotStore ballots,
+                                  Random random,
+                                  int[] candidateOrder,
+                                  int firstPreference,
+                                  double intrinsicWeight) {
+        int numCandidates = candidateOrder.length;
+
+        for (int candidate = 0; candidate < numCandidates; candidate++) {
+            candidateOrder[candidate] = candidate;
+        }
+
+        candidateOrder[0] = firstPreference;
+        candidateOrder[firstPreference] = 0;
+
+        for (int i = numCandidates - 1; i > 1; i--) {
+            int j = 1 + random.nextInt(i);
+            int swap = candidateOrder[i];
+            candidateOrder[i] = candidateOrder[j];
+            candidateOrder[j] = swap;
+        }
+
+        ballots.add(intrinsicWeight, candidateOrder, 0, 1 + random.nextInt(numCandidates));
+    }
+}
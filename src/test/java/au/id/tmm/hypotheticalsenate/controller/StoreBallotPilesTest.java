@@ -0,0 +1,46 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+import au.id.tmm.hypotheticalsenate.model.Result;
+import org.junit.Test;
+
+import java.util.List;
+
+import static au.id.tmm.hypotheticalsenate.controller.CountStepAssertions.assertCountStepsEqual;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author timothy
+ */
+public class StoreBallotPilesTest {
+
+    private static final int NUM_CANDIDATES = 20;
+    private static final int NUM_BALLOTS = 200000;
+    private static final int VACANCIES = 6;
+
+    @Test
+    public void parallelTransferGivesSameCountStepsAsSerialTransfer() {
+        List<Candidate> candidates = GeneratedBallots.candidates(NUM_CANDIDATES);
+        BallotStore ballots = GeneratedBallots.ballots(17, NUM_BALLOTS, NUM_CANDIDATES);
+
+        // The first candidate's pile must be large enough to be transferred in parallel once they are elected.
+        assertTrue(FirstPreferencePiles.fromBallots(ballots).toPiles(ballots, NUM_CANDIDATES)[0].size()
+                >= StoreBallotPiles.PARALLEL_CHUNK_SIZE * 2);
+
+        Result serialResult = count(candidates, ballots.copyOnWriteView(), 1);
+        Result parallelResult = count(candidates, ballots.copyOnWriteView(), 4);
+
+        assertCountStepsEqual(serialResult.getCountSteps(), parallelResult.getCountSteps());
+        assertEquals(serialResult.getElectedCandidates(), parallelResult.getElectedCandidates());
+    }
+
+    private static Result count(List<Candidate> candidates, BallotStore ballots, int parallelism) {
+        BallotCounter ballotCounter = new BallotCounter(VACANCIES, candidates, ballots);
+
+        ballotCounter.setParallelism(parallelism);
+
+        return ballotCounter.run();
+    }
+}
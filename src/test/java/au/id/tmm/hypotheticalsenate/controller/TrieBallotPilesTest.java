@@ -0,0 +1,71 @@
+package au.id.tmm.hypotheticalsenate.controller;
+
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Candidate;
+import au.id.tmm.hypotheticalsenate.model.Result;
+import org.junit.Test;
+
+import java.util.List;
+
+import static au.id.tmm.hypotheticalsenate.controller.CountStepAssertions.assertCountStepsEqual;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author timothy
+ */
+public class TrieBallotPilesTest {
+
+    private static final int NUM_CANDIDATES = 20;
+    private static final int VACANCIES = 6;
+    private static final List<Candidate> CANDIDATES = GeneratedBallots.candidates(NUM_CANDIDATES);
+
+    // Transfers through the trie sum the weights of whole branches, rather than of each ballot in turn, so the votes
+    // may differ from those of the store in their last few bits.
+    private static final double RELATIVE_TOLERANCE = 1e-9d;
+
+    @Test
+    public void trieGivesSameCountAsStore() {
+        for (long seed = 0; seed < 5; seed++) {
+            assertTrieMatchesStore(GeneratedBallots.ballots(seed, 20000, NUM_CANDIDATES), VACANCIES, false);
+        }
+    }
+
+    @Test
+    public void trieGivesSameCountAsStoreWithBulkExclusion() {
+        // With a single vacancy, several groups of trailing candidates are excluded together.
+        assertTrieMatchesStore(GeneratedBallots.ballotsWithDecliningSupport(11, NUM_CANDIDATES, 5000, 0.6), 1, true);
+    }
+
+    @Test
+    public void trieLeavesBallotsUntouched() {
+        BallotStore ballots = GeneratedBallots.ballots(3, 2000, NUM_CANDIDATES);
+
+        count(ballots, VACANCIES, true, false);
+
+        for (int ballot = 0; ballot < ballots.size(); ballot++) {
+            assertEquals(0, ballots.getCurrentPreferenceIndex(ballot));
+            assertEquals(1d, ballots.getCountWeight(ballot), 0d);
+        }
+    }
+
+    private static void assertTrieMatchesStore(BallotStore ballots, int vacancies, boolean bulkExclusion) {
+        Result storeResult = count(ballots.copyOnWriteView(), vacancies, false, bulkExclusion);
+        Result trieResult = count(ballots.copyOnWriteView(), vacancies, true, bulkExclusion);
+
+        assertCountStepsEqual(storeResult.getCountSteps(), trieResult.getCountSteps(), RELATIVE_TOLERANCE);
+        assertEquals(storeResult.getElectedCandidates(), trieResult.getElectedCandidates());
+    }
+
+    private static Result count(BallotStore ballots,
+                                int vacancies,
+                                boolean usePreferenceTrie,
+                                boolean bulkExclusion) {
+        BallotCounter ballotCounter = new BallotCounter(vacancies, CANDIDATES, ballots);
+
+        ballotCounter.setUsePreferenceTrie(usePreferenceTrie);
+        ballotCounter.setBulkExclusion(bulkExclusion);
+        ballotCounter.setVerifyTallies(true);
+
+        return ballotCounter.run();
+    }
+}
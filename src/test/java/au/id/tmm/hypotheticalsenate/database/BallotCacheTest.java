@@ -0,0 +1,174 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.model.AustralianState;
+import au.id.tmm.hypotheticalsenate.model.BallotArena;
+import au.id.tmm.hypotheticalsenate.model.BallotStore;
+import au.id.tmm.hypotheticalsenate.model.Election;
+import au.id.tmm.hypotheticalsenate.model.MappedBallotArena;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Optional;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author timothy
+ */
+public class BallotCacheTest {
+
+    private static final Election ELECTION = Election.ELECTION_2013;
+    private static final AustralianState STATE = AustralianState.TAS;
+    private static final String VARIANT = "variant";
+    private static final int[] CANDIDATE_IDS = {20101, 20102, 20103, 20104, 20105, 20106};
+
+    // The format version follows the magic number at the start of each file.
+    private static final int FORMAT_VERSION_POSITION = Integer.BYTES;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private BallotCache ballotCache;
+    private BallotStore ballots;
+
+    @Before
+    public void createCache() {
+        this.ballotCache = new BallotCache(new File(this.temporaryFolder.getRoot(), "ballots.ballotcache"));
+        this.ballots = randomBallots(500);
+    }
+
+    @Test
+    public void readsWrittenBallots() {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        Optional<BallotStore> cachedBallots = this.ballotCache.read(ELECTION, STATE, VARIANT, CANDIDATE_IDS);
+
+        assertTrue(cachedBallots.isPresent());
+        assertSameBallots(this.ballots, cachedBallots.get());
+    }
+
+    @Test
+    public void mapsWrittenBallots() {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        Optional<MappedBallotArena> cachedBallots = this.ballotCache.map(ELECTION, STATE, VARIANT, CANDIDATE_IDS);
+
+        assertTrue(cachedBallots.isPresent());
+        assertSameBallots(this.ballots, cachedBallots.get());
+    }
+
+    @Test
+    public void readsWrittenEmptyStore() {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, new BallotStore());
+
+        assertEquals(0, this.ballotCache.read(ELECTION, STATE, VARIANT, CANDIDATE_IDS).get().size());
+    }
+
+    @Test
+    public void ignoresFileWithBadChecksum() throws IOException {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        File cacheFile = this.onlyCacheFile();
+        byte[] bytes = Files.readAllBytes(cacheFile.toPath());
+        // Corrupt a byte of the candidate orders, well past the header.
+        bytes[bytes.length - Long.BYTES - 5] ^= 0x01;
+        Files.write(cacheFile.toPath(), bytes);
+
+        assertFalse(this.ballotCache.read(ELECTION, STATE, VARIANT, CANDIDATE_IDS).isPresent());
+        assertFalse(this.ballotCache.map(ELECTION, STATE, VARIANT, CANDIDATE_IDS).isPresent());
+    }
+
+    @Test
+    public void ignoresFileWithOtherFormatVersion() throws IOException {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        File cacheFile = this.onlyCacheFile();
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(cacheFile.toPath()));
+        buffer.putInt(FORMAT_VERSION_POSITION, buffer.getInt(FORMAT_VERSION_POSITION) - 1);
+
+        // Checksum the altered file again, so that it is only the format version that does not match.
+        CRC32 checksum = new CRC32();
+        checksum.update(buffer.array(), 0, buffer.limit() - Long.BYTES);
+        buffer.putLong(buffer.limit() - Long.BYTES, checksum.getValue());
+        Files.write(cacheFile.toPath(), buffer.array());
+
+        assertFalse(this.ballotCache.read(ELECTION, STATE, VARIANT, CANDIDATE_IDS).isPresent());
+        assertFalse(this.ballotCache.map(ELECTION, STATE, VARIANT, CANDIDATE_IDS).isPresent());
+    }
+
+    @Test
+    public void ignoresBallotsForOtherCandidates() {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        int[] otherCandidateIDs = CANDIDATE_IDS.clone();
+        otherCandidateIDs[0] = 30101;
+
+        assertFalse(this.ballotCache.read(ELECTION, STATE, VARIANT, otherCandidateIDs).isPresent());
+        assertFalse(this.ballotCache.read(ELECTION, STATE, "other", CANDIDATE_IDS).isPresent());
+        assertFalse(this.ballotCache.read(ELECTION, AustralianState.ACT, VARIANT, CANDIDATE_IDS).isPresent());
+    }
+
+    @Test
+    public void invalidateRemovesOnlyThatState() {
+        this.ballotCache.write(ELECTION, STATE, VARIANT, CANDIDATE_IDS, this.ballots);
+        this.ballotCache.write(ELECTION, STATE, "other", CANDIDATE_IDS, this.ballots);
+        this.ballotCache.write(ELECTION, AustralianState.ACT, VARIANT, CANDIDATE_IDS, this.ballots);
+
+        this.ballotCache.invalidate(ELECTION, STATE);
+
+        assertFalse(this.ballotCache.read(ELECTION, STATE, VARIANT, CANDIDATE_IDS).isPresent());
+        assertFalse(this.ballotCache.read(ELECTION, STATE, "other", CANDIDATE_IDS).isPresent());
+        assertTrue(this.ballotCache.read(ELECTION, AustralianState.ACT, VARIANT, CANDIDATE_IDS).isPresent());
+    }
+
+    private File onlyCacheFile() {
+        File[] cacheFiles = new File(this.temporaryFolder.getRoot(), "ballots.ballotcache")
+                .listFiles((directory, name) -> name.endsWith(".ballots"));
+
+        assertEquals(1, cacheFiles.length);
+
+        return cacheFiles[0];
+    }
+
+    private static void assertSameBallots(BallotArena expected, BallotArena actual) {
+        assertEquals(expected.size(), actual.size());
+
+        for (int ballot = 0; ballot < expected.size(); ballot++) {
+            assertEquals(expected.getIntrinsicWeight(ballot), actual.getIntrinsicWeight(ballot), 0d);
+            assertEquals(expected.getOrderLength(ballot), actual.getOrderLength(ballot));
+
+            for (int preferenceIndex = 0; preferenceIndex < expected.getOrderLength(ballot); preferenceIndex++) {
+                assertEquals(expected.getPreference(ballot, preferenceIndex),
+                        actual.getPreference(ballot, preferenceIndex));
+            }
+        }
+    }
+
+    private static BallotStore randomBallots(int numBallots) {
+        Random random = new Random(31);
+        BallotStore ballots = new BallotStore();
+        int[] candidateOrder = new int[CANDIDATE_IDS.length];
+
+        for (int ballot = 0; ballot < numBallots; ballot++) {
+            int orderLength = 1 + random.nextInt(CANDIDATE_IDS.length);
+
+            for (int preferenceIndex = 0; preferenceIndex < orderLength; preferenceIndex++) {
+                candidateOrder[preferenceIndex] = random.nextInt(CANDIDATE_IDS.length);
+            }
+
+            ballots.add(1 + random.nextInt(1000) / 7d, candidateOrder, 0, orderLength);
+        }
+
+        return ballots;
+    }
+}
@@ -0,0 +1,238 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.model.Election;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author timothy
+ */
+public class ExtractedRowsTest {
+
+    private static final int NUM_LINES = 2500;
+    private static final int FAILING_LINE = 1500;
+    private static final long TIMEOUT_MILLIS = 30000;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private DataSource dataSource;
+
+    @Before
+    public void createDataSource() throws IOException {
+        this.dataSource = this.writeDataSource(NUM_LINES);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void readsEveryRowInOrderInBackground() throws IOException {
+        assertReadsEveryRowInOrder(true);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void readsEveryRowInOrderInline() throws IOException {
+        assertReadsEveryRowInOrder(false);
+    }
+
+    private void assertReadsEveryRowInOrder(boolean readInBackground) throws IOException {
+        // Extracts a row from every line, a row from every third line, and a row for each group of ten lines.
+        List<Function<String[], List<Object>>> valueExtractors = Arrays.asList(
+                line -> Collections.<Object>singletonList(line[0]),
+                line -> Integer.parseInt(line[0]) % 3 == 0 ? Collections.<Object>singletonList(line[1]) : null,
+                new GroupOfTen());
+
+        List<List<Object>> rows = new ArrayList<>();
+        List<Integer> statementIndices = new ArrayList<>();
+        int numLines = 0;
+
+        try (ExtractedRows extractedRows = ExtractedRows.startReading(this.dataSource, valueExtractors,
+                readInBackground)) {
+            ExtractedRows.Chunk chunk;
+
+            while ((chunk = extractedRows.take()) != null) {
+                assertTrue(chunk.getNumLines() <= ExtractedRows.LINES_PER_CHUNK);
+                numLines += chunk.getNumLines();
+
+                for (int row = 0; row < chunk.getNumRows(); row++) {
+                    statementIndices.add(chunk.getStatementIndex(row));
+                    rows.add(chunk.getParamValues(row));
+                }
+            }
+
+            assertNull(extractedRows.take());
+        }
+
+        assertEquals(NUM_LINES, numLines);
+
+        List<List<Object>> expectedRows = new ArrayList<>();
+        List<Integer> expectedStatementIndices = new ArrayList<>();
+
+        for (int line = 0; line < NUM_LINES; line++) {
+            expectedStatementIndices.add(0);
+            expectedRows.add(Collections.<Object>singletonList(Integer.toString(line)));
+
+            if (line % 3 == 0) {
+                expectedStatementIndices.add(1);
+                expectedRows.add(Collections.<Object>singletonList("value" + line));
+            }
+
+            if (line % 10 == 0 && line > 0) {
+                expectedStatementIndices.add(2);
+                expectedRows.add(Arrays.<Object>asList(line / 10 - 1, 10));
+            }
+        }
+
+        // The last group is only finished once every line has been read.
+        expectedStatementIndices.add(2);
+        expectedRows.add(Arrays.<Object>asList(NUM_LINES / 10 - 1, 10));
+
+        assertEquals(expectedStatementIndices, statementIndices);
+        assertEquals(expectedRows, rows);
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void extractorExceptionReachesWriterAfterEarlierChunks() throws IOException {
+        IllegalArgumentException failure = new IllegalArgumentException("Bad line");
+
+        try (ExtractedRows extractedRows = ExtractedRows.startReading(this.dataSource,
+                failingAt(FAILING_LINE, failure), true)) {
+            assertEquals(ExtractedRows.LINES_PER_CHUNK, extractedRows.take().getNumLines());
+
+            try {
+                extractedRows.take();
+                fail("The extractor's exception was not passed to the writer");
+            } catch (RuntimeException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void extractorErrorReachesWriterUnwrapped() throws IOException {
+        AssertionError failure = new AssertionError("Broken extractor");
+
+        try (ExtractedRows extractedRows = ExtractedRows.startReading(this.dataSource, failingAt(0, failure), true)) {
+            try {
+                extractedRows.take();
+                fail("The extractor's error was not passed to the writer");
+            } catch (AssertionError e) {
+                assertSame(failure, e);
+            }
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void extractorExceptionIsThrownInline() throws IOException {
+        IllegalArgumentException failure = new IllegalArgumentException("Bad line");
+
+        try (ExtractedRows extractedRows = ExtractedRows.startReading(this.dataSource,
+                failingAt(FAILING_LINE, failure), false)) {
+            extractedRows.take();
+
+            try {
+                extractedRows.take();
+                fail("The extractor's exception was not thrown");
+            } catch (IllegalArgumentException e) {
+                assertSame(failure, e);
+            }
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MILLIS)
+    public void closeAbandonsReaderBlockedOnFullQueue() throws IOException {
+        // Enough lines that the reader fills the queue and waits for the writer.
+        DataSource largeDataSource = this.writeDataSource(
+                (ExtractedRows.QUEUE_CAPACITY + 4) * ExtractedRows.LINES_PER_CHUNK);
+
+        ExtractedRows extractedRows = ExtractedRows.startReading(largeDataSource,
+                Collections.singletonList(line -> Collections.<Object>singletonList(line[0])), true);
+
+        extractedRows.take();
+        extractedRows.close();
+    }
+
+    private static List<Function<String[], List<Object>>> failingAt(int failingLine, Throwable failure) {
+        return Collections.singletonList(line -> {
+            if (Integer.parseInt(line[0]) == failingLine) {
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+
+                throw (RuntimeException) failure;
+            }
+
+            return Collections.singletonList(line[0]);
+        });
+    }
+
+    /**
+     * Writes a candidates file with the given number of lines after its info and column header lines, each holding its
+     * line number and a value, and returns a {@link DataSource} reading it.
+     */
+    private DataSource writeDataSource(int numLines) throws IOException {
+        File downloadDirectory = this.temporaryFolder.newFolder();
+        List<String> lines = new ArrayList<>(numLines + 2);
+
+        lines.add("Info line");
+        lines.add("Line\tValue");
+
+        for (int line = 0; line < numLines; line++) {
+            lines.add(line + "\tvalue" + line);
+        }
+
+        DataSource dataSource = new DataSource(AECResource.candidates(Election.ELECTION_2013), downloadDirectory);
+        File sourceFile = new File(downloadDirectory, "SenateCandidatesDownload-" + Election.ELECTION_2013.getID()
+                + ".txt");
+
+        Files.write(sourceFile.toPath(), lines, StandardCharsets.UTF_8);
+        assertTrue(dataSource.isDownloaded());
+
+        return dataSource;
+    }
+
+    /**
+     * Counts the lines of each group of ten consecutive lines.
+     */
+    private static final class GroupOfTen implements GroupingValueExtractor {
+
+        private int currentGroup = -1;
+        private int numLines = 0;
+
+        @Override
+        public List<Object> apply(String[] line) {
+            int group = Integer.parseInt(line[0]) / 10;
+            List<Object> previousGroup = group != this.currentGroup ? this.finish() : null;
+
+            if (group != this.currentGroup) {
+                this.currentGroup = group;
+                this.numLines = 0;
+            }
+
+            this.numLines++;
+
+            return previousGroup;
+        }
+
+        @Override
+        public List<Object> finish() {
+            return this.currentGroup < 0 ? null : Arrays.<Object>asList(this.currentGroup, this.numLines);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import au.id.tmm.hypotheticalsenate.controller.BallotCollector;
+import au.id.tmm.hypotheticalsenate.model.AustralianState;
+import au.id.tmm.hypotheticalsenate.model.Election;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author timothy
+ */
+public class HypotheticalSenateDatabaseUpgradeTest {
+
+    // The tables read during a count, as they were created before the schema was versioned, when their primary keys
+    // did not lead with the election and there was no packed below the line ballot table.
+    private static final String[] UNVERSIONED_TABLES = {
+            "CREATE TABLE Candidate(electionID INTEGER, candidateID INTEGER, partyID TEXT(5), givenName TEXT, " +
+                    "surname TEXT, PRIMARY KEY (electionID, candidateID));",
+            "CREATE TABLE GroupTicketPreference(electionID INTEGER, stateCode TEXT(3), ownerGroup TEXT(2), " +
+                    "ticket INTEGER, preference INTEGER, preferencedCandidate INTEGER, " +
+                    "PRIMARY KEY (stateCode, ownerGroup, ticket, preference));",
+            "CREATE TABLE BelowTheLineBallot(electionID INTEGER, stateCode TEXT(3), ballotID INTEGER, " +
+                    "batch INTEGER, paper INTEGER, candidateID INTEGER, preference INTEGER, " +
+                    "PRIMARY KEY (stateCode, ballotID, candidateID));",
+            "CREATE TABLE AboveTheLineVotes(electionID INTEGER, stateCode TEXT(3), groupID TEXT(5), votes INTEGER, " +
+                    "PRIMARY KEY (stateCode, groupID));",
+    };
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dbFile;
+    private HypotheticalSenateDatabase database;
+    private BallotCollector ballotCollector;
+
+    @Before
+    public void createDatabase() {
+        this.dbFile = new File(this.temporaryFolder.getRoot(), "upgrade.db");
+        this.database = new HypotheticalSenateDatabase(this.dbFile);
+        this.ballotCollector = new BallotCollector(Election.ELECTION_2013, AustralianState.TAS);
+    }
+
+    @Test
+    public void upgradeIndexesUnversionedTablesByElectionAndState() throws SQLException {
+        this.execute(UNVERSIONED_TABLES);
+
+        this.database.upgrade();
+
+        assertEquals(new ArrayList<String>(), this.ballotCollector.checkQueryPlans(this.database));
+        assertEquals(HypotheticalSenateDatabase.SCHEMA_VERSION, this.queryInt("PRAGMA user_version;"));
+        assertEquals(1, this.queryInt(
+                "SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'PackedBelowTheLineBallot';"));
+    }
+
+    @Test
+    public void upgradeLeavesCurrentSchemaUntouched() throws SQLException {
+        this.database.createTables();
+
+        assertEquals(HypotheticalSenateDatabase.SCHEMA_VERSION, this.queryInt("PRAGMA user_version;"));
+
+        List<String> indexesBefore = this.queryIndexNames();
+
+        this.database.upgrade();
+
+        assertEquals(indexesBefore, this.queryIndexNames());
+        assertTrue(this.ballotCollector.checkQueryPlans(this.database).isEmpty());
+    }
+
+    @Test
+    public void upgradeLeavesMissingDatabaseMissing() {
+        this.database.upgrade();
+
+        assertFalse(this.dbFile.exists());
+    }
+
+    private void execute(String... statements) throws SQLException {
+        try (Connection connection = this.openConnection();
+             Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.executeUpdate(sql);
+            }
+        }
+    }
+
+    private int queryInt(String query) throws SQLException {
+        try (Connection connection = this.openConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            return resultSet.getInt(1);
+        }
+    }
+
+    private List<String> queryIndexNames() throws SQLException {
+        List<String> indexNames = new ArrayList<>();
+
+        try (Connection connection = this.openConnection();
+             Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(
+                     "SELECT name FROM sqlite_master WHERE type = 'index' ORDER BY name;")) {
+            while (resultSet.next()) {
+                indexNames.add(resultSet.getString(1));
+            }
+        }
+
+        return indexNames;
+    }
+
+    private Connection openConnection() throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + this.dbFile.getPath());
+    }
+}
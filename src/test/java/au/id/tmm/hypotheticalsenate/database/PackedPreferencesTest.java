@@ -0,0 +1,104 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author timothy
+ */
+public class PackedPreferencesTest {
+
+    @Test
+    public void roundTripsTypicalPreferences() {
+        int[][] preferences = {
+                {20101, 1},
+                {20102, 3},
+                {20099, 2},
+                {19876, 0},
+                {20250, -1},
+        };
+
+        byte[] packed = pack(preferences);
+
+        // Both values of each pair fit in a few bytes.
+        assertTrue(packed.length <= 4 * preferences.length);
+        assertArrayEquals(preferences, unpack(packed));
+    }
+
+    @Test
+    public void roundTripsLargeVarints() {
+        int[][] preferences = {
+                {0, 0},
+                {127, 63},
+                {128, 64},
+                {16383, -64},
+                {16384, -65},
+                {2097151, 1 << 20},
+                {2097152, -(1 << 20)},
+                {Integer.MAX_VALUE, Integer.MAX_VALUE},
+                {Integer.MAX_VALUE - 1, Integer.MIN_VALUE},
+                {-1, -1},
+                {Integer.MIN_VALUE, 1},
+        };
+
+        assertArrayEquals(preferences, unpack(pack(preferences)));
+    }
+
+    @Test
+    public void roundTripsRandomPreferences() {
+        Random random = new Random(23);
+
+        for (int ballot = 0; ballot < 1000; ballot++) {
+            int[][] preferences = new int[random.nextInt(60)][];
+
+            for (int preference = 0; preference < preferences.length; preference++) {
+                // Values of every length, from a single byte to the full five.
+                int bits = random.nextInt(32);
+                preferences[preference] = new int[] {random.nextInt() >>> bits, random.nextInt() >> bits};
+            }
+
+            assertArrayEquals(preferences, unpack(pack(preferences)));
+        }
+    }
+
+    @Test
+    public void resetStartsNewBlob() {
+        PackedPreferences.Packer packer = new PackedPreferences.Packer();
+
+        packer.add(1, 1);
+        packer.reset();
+
+        assertTrue(packer.isEmpty());
+        assertEquals(0, packer.toByteArray().length);
+
+        packer.add(300, 2);
+
+        assertArrayEquals(new int[][] {{300, 2}}, unpack(packer.toByteArray()));
+    }
+
+    private static byte[] pack(int[][] preferences) {
+        PackedPreferences.Packer packer = new PackedPreferences.Packer();
+
+        for (int[] preference : preferences) {
+            packer.add(preference[0], preference[1]);
+        }
+
+        return packer.toByteArray();
+    }
+
+    private static int[][] unpack(byte[] packed) {
+        List<int[]> preferences = new ArrayList<>();
+
+        PackedPreferences.unpack(packed, (candidateID, preference) ->
+                preferences.add(new int[] {candidateID, preference}));
+
+        return preferences.toArray(new int[preferences.size()][]);
+    }
+}
@@ -0,0 +1,150 @@
+package au.id.tmm.hypotheticalsenate.database;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author timothy
+ */
+public class StagingTablesTest {
+
+    private static final String[] CREATE_TABLES = {
+            "CREATE TABLE Target(a INTEGER, b TEXT, c INTEGER, PRIMARY KEY (a, b)) WITHOUT ROWID;",
+            "CREATE INDEX TargetByC ON Target (c);",
+            "CREATE TABLE Other(x INTEGER, y INTEGER, PRIMARY KEY (x));",
+    };
+
+    private static final String INSERT_TARGET = "INSERT OR IGNORE INTO Target (a, b, c) VALUES (?, ?, ?);";
+    private static final String INSERT_OTHER = "INSERT INTO Other VALUES (?, ?);";
+
+    private final Collection<AutoCloseable> resources = new ArrayList<>();
+
+    private Connection stagedConnection;
+    private Connection directConnection;
+
+    @Before
+    public void createTables() throws SQLException {
+        this.stagedConnection = createDatabase();
+        this.directConnection = createDatabase();
+    }
+
+    @After
+    public void closeConnections() throws Exception {
+        for (AutoCloseable resource : this.resources) {
+            resource.close();
+        }
+
+        this.stagedConnection.close();
+        this.directConnection.close();
+    }
+
+    @Test
+    public void stagesInsertsIntoTablesWithoutKeys() throws SQLException {
+        StagingTables stagingTables = new StagingTables(this.stagedConnection, this.resources);
+
+        assertEquals("INSERT INTO StagingTarget (a, b, c) VALUES (?, ?, ?);", stagingTables.stage(INSERT_TARGET));
+        assertEquals("INSERT INTO StagingOther VALUES (?, ?);", stagingTables.stage(INSERT_OTHER));
+
+        assertEquals(Arrays.asList("StagingOther", "StagingTarget"),
+                queryStrings(this.stagedConnection, "SELECT name FROM sqlite_master WHERE type = 'table' " +
+                        "AND name LIKE 'Staging%' ORDER BY name;"));
+        assertEquals(new ArrayList<String>(),
+                queryStrings(this.stagedConnection, "SELECT name FROM sqlite_master WHERE type = 'index' " +
+                        "AND tbl_name LIKE 'Staging%';"));
+    }
+
+    @Test
+    public void copiesSameRowsAsDirectInserts() throws SQLException {
+        StagingTables stagingTables = new StagingTables(this.stagedConnection, this.resources);
+        Random random = new Random(3);
+        int numDistinctRows = 0;
+
+        try (PreparedStatement stagedTarget = this.stagedConnection.prepareStatement(stagingTables.stage(INSERT_TARGET));
+             PreparedStatement stagedOther = this.stagedConnection.prepareStatement(stagingTables.stage(INSERT_OTHER));
+             PreparedStatement directTarget = this.directConnection.prepareStatement(INSERT_TARGET);
+             PreparedStatement directOther = this.directConnection.prepareStatement(INSERT_OTHER)) {
+            // Rows in no particular order, with many duplicated keys whose first row must be the one kept.
+            for (int row = 0; row < 2000; row++) {
+                Object[] values = {random.nextInt(40), "b" + random.nextInt(20), row};
+
+                insert(stagedTarget, values);
+                numDistinctRows += insert(directTarget, values);
+            }
+
+            for (int row = 0; row < 100; row++) {
+                Object[] values = {99 - row, row};
+
+                insert(stagedOther, values);
+                numDistinctRows += insert(directOther, values);
+            }
+        }
+
+        assertEquals(numDistinctRows, stagingTables.copyToTargetTables());
+
+        assertEquals(queryStrings(this.directConnection, "SELECT a || ':' || b || ':' || c FROM Target ORDER BY a, b;"),
+                queryStrings(this.stagedConnection, "SELECT a || ':' || b || ':' || c FROM Target ORDER BY a, b;"));
+        assertEquals(queryStrings(this.directConnection, "SELECT x || ':' || y FROM Other ORDER BY x;"),
+                queryStrings(this.stagedConnection, "SELECT x || ':' || y FROM Other ORDER BY x;"));
+
+        // The staging tables are dropped, and the explicit index is rebuilt.
+        assertEquals(Arrays.asList("Other", "Target"),
+                queryStrings(this.stagedConnection, "SELECT name FROM sqlite_master WHERE type = 'table' " +
+                        "ORDER BY name;"));
+        assertEquals(Arrays.asList("TargetByC"),
+                queryStrings(this.stagedConnection, "SELECT name FROM sqlite_master WHERE type = 'index' " +
+                        "AND sql IS NOT NULL;"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsStatementOtherThanInsert() throws SQLException {
+        new StagingTables(this.stagedConnection, this.resources).stage("UPDATE Target SET c = 0;");
+    }
+
+    private static Connection createDatabase() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+
+        try (Statement statement = connection.createStatement()) {
+            for (String sql : CREATE_TABLES) {
+                statement.executeUpdate(sql);
+            }
+        }
+
+        return connection;
+    }
+
+    private static int insert(PreparedStatement statement, Object... values) throws SQLException {
+        for (int paramIndex = 0; paramIndex < values.length; paramIndex++) {
+            statement.setObject(paramIndex + 1, values[paramIndex]);
+        }
+
+        return statement.executeUpdate();
+    }
+
+    private static List<String> queryStrings(Connection connection, String query) throws SQLException {
+        List<String> values = new ArrayList<>();
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+            while (resultSet.next()) {
+                values.add(resultSet.getString(1));
+            }
+        }
+
+        return values;
+    }
+}
@@ -0,0 +1,170 @@
+package au.id.tmm.hypotheticalsenate.model;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author timothy
+ */
+public class VoteTallyTest {
+
+    @Test
+    public void emptyTallyHasNoLowestOrHighestCandidate() {
+        VoteTally tally = new VoteTally(3);
+
+        assertEquals(VoteTally.NO_CANDIDATE, tally.getLowestVoteCandidate());
+        assertEquals(VoteTally.NO_CANDIDATE, tally.getHighestVoteCandidate());
+        assertArrayEquals(new int[0], tally.candidatesBelow(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void tiesAreBrokenByLowerIndex() {
+        VoteTally tally = new VoteTally(4);
+
+        tally.put(3, 5d);
+        tally.put(1, 5d);
+        tally.put(2, 5d);
+
+        assertEquals(1, tally.getLowestVoteCandidate());
+        assertEquals(1, tally.getHighestVoteCandidate());
+        assertArrayEquals(new int[] {1, 2, 3}, tally.candidatesBelow(Double.POSITIVE_INFINITY));
+
+        tally.adjust(1, 1d);
+
+        assertEquals(2, tally.getLowestVoteCandidate());
+        assertEquals(1, tally.getHighestVoteCandidate());
+
+        tally.adjust(3, 1d);
+
+        assertEquals(2, tally.getLowestVoteCandidate());
+        assertEquals(1, tally.getHighestVoteCandidate());
+        assertArrayEquals(new int[] {2, 1, 3}, tally.candidatesBelow(Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void candidatesBelowExcludesThresholdAndOrdersByVotes() {
+        VoteTally tally = new VoteTally(5);
+
+        tally.put(0, 30d);
+        tally.put(1, 10d);
+        tally.put(2, 20d);
+        tally.put(3, 10d);
+        tally.put(4, 40d);
+
+        assertArrayEquals(new int[] {1, 3, 2}, tally.candidatesBelow(30d));
+        assertArrayEquals(new int[0], tally.candidatesBelow(10d));
+    }
+
+    @Test
+    public void removeReturnsVotesAndForgetsCandidate() {
+        VoteTally tally = new VoteTally(3);
+
+        tally.put(0, 1d);
+        tally.put(1, 2d);
+        tally.put(2, 3d);
+
+        assertEquals(1d, tally.remove(0), 0d);
+        assertFalse(tally.contains(0));
+        assertEquals(0d, tally.remove(0), 0d);
+        assertEquals(2, tally.size());
+        assertEquals(1, tally.getLowestVoteCandidate());
+        assertEquals(2, tally.getHighestVoteCandidate());
+    }
+
+    @Test
+    public void randomOperationsMatchFullScan() {
+        int numCandidates = 25;
+        Random random = new Random(7);
+        VoteTally tally = new VoteTally(numCandidates);
+        Double[] expectedVotes = new Double[numCandidates];
+
+        for (int operation = 0; operation < 20000; operation++) {
+            int candidate = random.nextInt(numCandidates);
+            // Few distinct vote counts, so that ties are common.
+            double votes = random.nextInt(6);
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    tally.put(candidate, votes);
+                    expectedVotes[candidate] = votes;
+                    break;
+                case 1:
+                    if (expectedVotes[candidate] != null) {
+                        tally.adjust(candidate, votes - 2.5d);
+                        expectedVotes[candidate] += votes - 2.5d;
+                    }
+                    break;
+                default:
+                    double removedVotes = tally.remove(candidate);
+                    assertEquals(expectedVotes[candidate] == null ? 0d : expectedVotes[candidate], removedVotes, 0d);
+                    expectedVotes[candidate] = null;
+                    break;
+            }
+
+            assertMatchesFullScan(expectedVotes, tally, votes);
+        }
+    }
+
+    /**
+     * Checks the tally against the expected votes of each candidate, where a {@code null} is a candidate absent from
+     * the tally.
+     */
+    private static void assertMatchesFullScan(Double[] expectedVotes, VoteTally tally, double threshold) {
+        List<Integer> expectedOrder = new ArrayList<>();
+
+        for (int candidate = 0; candidate < expectedVotes.length; candidate++) {
+            assertEquals(expectedVotes[candidate] != null, tally.contains(candidate));
+
+            if (expectedVotes[candidate] != null) {
+                assertEquals(expectedVotes[candidate], tally.get(candidate), 0d);
+                expectedOrder.add(candidate);
+            }
+        }
+
+        expectedOrder.sort((candidate1, candidate2) -> {
+            int byVotes = Double.compare(expectedVotes[candidate1], expectedVotes[candidate2]);
+
+            return byVotes != 0 ? byVotes : Integer.compare(candidate1, candidate2);
+        });
+
+        assertEquals(expectedOrder.size(), tally.size());
+
+        if (expectedOrder.isEmpty()) {
+            assertEquals(VoteTally.NO_CANDIDATE, tally.getLowestVoteCandidate());
+            assertEquals(VoteTally.NO_CANDIDATE, tally.getHighestVoteCandidate());
+            return;
+        }
+
+        int lowest = expectedOrder.get(0);
+        int highest = expectedOrder.get(expectedOrder.size() - 1);
+        for (int candidate : expectedOrder) {
+            // The highest candidate is the lowest indexed of those with the most votes.
+            if (expectedVotes[candidate].equals(expectedVotes[highest])) {
+                highest = candidate;
+                break;
+            }
+        }
+
+        assertEquals(lowest, tally.getLowestVoteCandidate());
+        assertEquals(highest, tally.getHighestVoteCandidate());
+
+        int[] expectedAll = expectedOrder.stream().mapToInt(Integer::intValue).toArray();
+        int[] expectedBelow = expectedOrder.stream()
+                .filter(candidate -> expectedVotes[candidate] < threshold)
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        assertArrayEquals(expectedAll, tally.candidatesBelow(Double.POSITIVE_INFINITY));
+        assertArrayEquals(Arrays.toString(expectedBelow), expectedBelow, tally.candidatesBelow(threshold));
+        assertTrue(tally.candidatesBelow(Double.NEGATIVE_INFINITY).length == 0);
+    }
+}